@@ -0,0 +1,223 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * The binary format of allocation traces, as written by AllocationTraceRecorder
+ * and read by AllocationTrace.Reader.
+ * <p>
+ * A trace starts with a header: the 4 bytes of MAGIC, the VERSION byte, and
+ * the size of the traced memory space as a varint. Then comes one record per
+ * call, made of an op byte and the time since the previous record, in
+ * nanoseconds, as a varint, followed by:
+ * <ul>
+ * <li>MALLOC: the requested length, and the returned address + 1 (so that a
+ * failed malloc is 0), as varints;</li>
+ * <li>FREE: the address, as a varint;</li>
+ * <li>DEFRAG: nothing.</li>
+ * </ul>
+ * A varint holds 7 bits per byte, low bits first, with the high bit set on
+ * every byte but the last, so that small numbers take a single byte. A
+ * typical record takes 4 to 8 bytes.
+ */
+public final class AllocationTrace {
+
+	/** The first 4 bytes of a trace: "MSTR". */
+	public static final int MAGIC = 0x4D535452;
+
+	/** The version of the format. */
+	public static final int VERSION = 1;
+
+	/** The op of a malloc record. */
+	public static final int MALLOC = 1;
+
+	/** The op of a free record. */
+	public static final int FREE = 2;
+
+	/** The op of a defrag record. */
+	public static final int DEFRAG = 3;
+
+	private AllocationTrace() {
+	}
+
+	/**
+	 * Writes a non-negative number as a varint.
+	 *
+	 * @param out
+	 *        the stream to write to
+	 * @param value
+	 *        the number, treated as unsigned
+	 * @throws IOException
+	 *         if the stream fails
+	 */
+	public static void writeVarint(OutputStream out, long value) throws IOException {
+		while ((value & ~0x7FL) != 0) {
+			out.write((int) (value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.write((int) value);
+	}
+
+	/**
+	 * Reads a varint.
+	 *
+	 * @param in
+	 *        the stream to read from
+	 * @return the number
+	 * @throws EOFException
+	 *         if the stream ends within the varint
+	 * @throws IOException
+	 *         if the stream fails, or the varint is longer than 10 bytes
+	 */
+	public static long readVarint(InputStream in) throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = in.read();
+			if (b == -1) {
+				throw new EOFException("The trace ends within a varint");
+			}
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Malformed varint");
+	}
+
+	/**
+	 * Writes the header of a trace.
+	 *
+	 * @param out
+	 *        the stream to write to
+	 * @param maxSize
+	 *        the size of the traced memory space
+	 * @throws IOException
+	 *         if the stream fails
+	 */
+	public static void writeHeader(OutputStream out, int maxSize) throws IOException {
+		out.write(MAGIC >>> 24);
+		out.write(MAGIC >>> 16 & 0xFF);
+		out.write(MAGIC >>> 8 & 0xFF);
+		out.write(MAGIC & 0xFF);
+		out.write(VERSION);
+		writeVarint(out, maxSize);
+	}
+
+	/**
+	 * Reads a trace, one record at a time. Only the current record is held
+	 * in memory, so traces of any length can be read.
+	 */
+	public static class Reader implements AutoCloseable {
+
+		private final InputStream in;  // the trace, after the header
+		private final int maxSize;     // the size of the traced memory space
+		private int op;                // the op of the current record
+		private long time;             // the time of the current record, since the start
+		private int length;            // the requested length of the current malloc record
+		private int address;           // the address of the current record
+
+		/**
+		 * Constructs a new reader, and reads the header of the trace.
+		 *
+		 * @param in
+		 *        the trace; should be buffered
+		 * @throws IOException
+		 *         if the stream fails, or does not start with a trace header
+		 */
+		public Reader(InputStream in) throws IOException {
+			this.in = in;
+			int magic = 0;
+			for (int i = 0; i < 4; i++) {
+				int b = in.read();
+				if (b == -1) {
+					throw new EOFException("The trace has no header");
+				}
+				magic = magic << 8 | b;
+			}
+			if (magic != MAGIC) {
+				throw new IOException("Not an allocation trace");
+			}
+			int version = in.read();
+			if (version != VERSION) {
+				throw new IOException("Unsupported trace version " + version);
+			}
+			this.maxSize = (int) readVarint(in);
+		}
+
+		/**
+		 * Gets the size of the traced memory space.
+		 *
+		 * @return the size of the memory space
+		 */
+		public int getMaxSize() {
+			return maxSize;
+		}
+
+		/**
+		 * Reads the next record.
+		 *
+		 * @return true if a record was read, false at the end of the trace
+		 * @throws IOException
+		 *         if the stream fails, or the trace is malformed
+		 */
+		public boolean next() throws IOException {
+			op = in.read();
+			if (op == -1) {
+				return false;
+			}
+			time += readVarint(in);
+			if (op == MALLOC) {
+				length = (int) readVarint(in);
+				address = (int) (readVarint(in) - 1);
+			} else if (op == FREE) {
+				length = 0;
+				address = (int) readVarint(in);
+			} else if (op == DEFRAG) {
+				length = 0;
+				address = 0;
+			} else {
+				throw new IOException("Unknown op " + op);
+			}
+			return true;
+		}
+
+		/**
+		 * @return the op of the current record: MALLOC, FREE or DEFRAG
+		 */
+		public int getOp() {
+			return op;
+		}
+
+		/**
+		 * @return the time of the current record, in nanoseconds since the start of the trace
+		 */
+		public long getTime() {
+			return time;
+		}
+
+		/**
+		 * @return the requested length of the current malloc record
+		 */
+		public int getLength() {
+			return length;
+		}
+
+		/**
+		 * @return the address of the current record; -1 for a failed malloc
+		 */
+		public int getAddress() {
+			return address;
+		}
+
+		/**
+		 * Closes the stream.
+		 *
+		 * @throws IOException
+		 *         if the stream fails
+		 */
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,207 @@
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Records the malloc, free and defrag calls made on a memory space (see
+ * MemorySpace.setTraceRecorder) into a binary trace, in the format described
+ * in AllocationTrace.
+ * <p>
+ * The calling thread only stores the call in a single-producer,
+ * single-consumer ring buffer, without locking or allocating; a background
+ * thread encodes the records and writes them to the stream. If the ring
+ * buffer is full, the calling thread waits for the writer, so no call is
+ * lost: a trace must be complete to be replayed. The calls must come from one
+ * thread at a time, which is how a MemorySpace is used anyway. Calls made
+ * after close are ignored.
+ */
+public class AllocationTraceRecorder implements AutoCloseable {
+
+	private final long[] times;      // the time of each record, in nanoseconds
+	private final int[] ops;         // the op of each record
+	private final int[] lengths;     // the requested length of each malloc record
+	private final int[] addresses;   // the address of each record
+	private final int mask;          // the capacity of the ring buffer - 1
+
+	private final AtomicLong head;   // the next record the writer reads
+	private final AtomicLong tail;   // the next record the caller writes
+	private long cachedHead;         // the last head seen by the caller
+
+	private final OutputStream out;  // the trace
+	private final Thread writer;     // the background writer
+	private volatile boolean running;
+	private volatile IOException failure; // the first error of the writer, if any
+	private long stalls;             // the calls that waited for the writer
+	private long previousTime;       // the time of the last record written
+
+	/**
+	 * Constructs a new recorder, writes the header of the trace, and starts
+	 * the background writer.
+	 *
+	 * @param out
+	 *        the stream to write the trace to; closed by close
+	 * @param maxSize
+	 *        the size of the traced memory space
+	 * @param capacity
+	 *        the number of records the ring buffer holds, rounded up to a power of two
+	 * @throws IllegalArgumentException
+	 *         if out is null, or capacity is not between 1 and 2^30
+	 * @throws IOException
+	 *         if the header cannot be written
+	 */
+	public AllocationTraceRecorder(OutputStream out, int maxSize, int capacity) throws IOException {
+		if (out == null || capacity <= 0 || capacity > 1 << 30) {
+			throw new IllegalArgumentException("out must not be null, and capacity must be between 1 and 2^30");
+		}
+		int size = Integer.highestOneBit(capacity - 1) << 1;
+		size = Math.max(size, 2);
+		this.times = new long[size];
+		this.ops = new int[size];
+		this.lengths = new int[size];
+		this.addresses = new int[size];
+		this.mask = size - 1;
+		this.head = new AtomicLong();
+		this.tail = new AtomicLong();
+		this.out = new BufferedOutputStream(out, 1 << 16);
+		AllocationTrace.writeHeader(this.out, maxSize);
+		this.previousTime = System.nanoTime();
+		this.running = true;
+		this.writer = new Thread(this::run, "MemorySpace-trace");
+		this.writer.setDaemon(true);
+		this.writer.start();
+	}
+
+	/**
+	 * Records a malloc.
+	 *
+	 * @param length
+	 *        the requested length
+	 * @param address
+	 *        the returned address, or -1
+	 */
+	public void recordMalloc(int length, int address) {
+		record(AllocationTrace.MALLOC, length, address);
+	}
+
+	/**
+	 * Records a free.
+	 *
+	 * @param address
+	 *        the freed address
+	 */
+	public void recordFree(int address) {
+		record(AllocationTrace.FREE, 0, address);
+	}
+
+	/**
+	 * Records a defrag.
+	 */
+	public void recordDefrag() {
+		record(AllocationTrace.DEFRAG, 0, 0);
+	}
+
+	/**
+	 * Gets the number of calls that waited because the ring buffer was full.
+	 * A large number means the capacity is too small for the rate of calls.
+	 *
+	 * @return the number of stalled calls
+	 */
+	public long getStallCount() {
+		return stalls;
+	}
+
+	/**
+	 * Writes the records that are still in the ring buffer, stops the
+	 * background writer, and closes the stream.
+	 *
+	 * @throws IOException
+	 *         if the trace could not be written
+	 */
+	public void close() throws IOException {
+		running = false;
+		LockSupport.unpark(writer);
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		try {
+			out.close();
+		} catch (IOException e) {
+			if (failure == null) {
+				failure = e;
+			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	private void record(int op, int length, int address) {
+		if (!running) {
+			// a closed recorder may still be attached; the call must go on
+			return;
+		}
+		long t = tail.get();
+		if (t - cachedHead > mask) {
+			cachedHead = head.get();
+			if (t - cachedHead > mask) {
+				stalls++;
+				LockSupport.unpark(writer);
+				while (t - (cachedHead = head.get()) > mask) {
+					if (failure != null) {
+						// the writer is gone, and the trace is broken anyway
+						return;
+					}
+					Thread.yield();
+				}
+			}
+		}
+		int i = (int) t & mask;
+		times[i] = System.nanoTime();
+		ops[i] = op;
+		lengths[i] = length;
+		addresses[i] = address;
+		// publishes the record to the writer
+		tail.lazySet(t + 1);
+	}
+
+	private void run() {
+		try {
+			while (true) {
+				boolean stopping = !running;
+				long h = head.get();
+				long t = tail.get();
+				if (h == t) {
+					if (stopping) {
+						break;
+					}
+					out.flush();
+					LockSupport.parkNanos(100000);
+					continue;
+				}
+				for (; h < t; h++) {
+					write((int) h & mask);
+				}
+				head.lazySet(t);
+			}
+			out.flush();
+		} catch (IOException e) {
+			failure = e;
+		}
+	}
+
+	private void write(int i) throws IOException {
+		out.write(ops[i]);
+		AllocationTrace.writeVarint(out, Math.max(0, times[i] - previousTime));
+		previousTime = times[i];
+		if (ops[i] == AllocationTrace.MALLOC) {
+			AllocationTrace.writeVarint(out, lengths[i]);
+			AllocationTrace.writeVarint(out, addresses[i] + 1L);
+		} else if (ops[i] == AllocationTrace.FREE) {
+			AllocationTrace.writeVarint(out, addresses[i]);
+		}
+	}
+}
@@ -0,0 +1,31 @@
+/**
+ * Represents an allocator of variable-length memory blocks, addressed in
+ * words. MemorySpace and the allocators built on it implement this
+ * interface, so that tools such as TraceReplay can drive any of them.
+ */
+public interface Allocator {
+
+	/**
+	 * Allocates a memory block of a requested length (in words).
+	 *
+	 * @param length
+	 *        the length (in words) of the memory block that has to be allocated
+	 * @return the base address of the allocated block, or -1 if unable to allocate
+	 */
+	int malloc(int length);
+
+	/**
+	 * Frees the memory block whose base address equals the given address.
+	 *
+	 * @param address
+	 *        the base address of the block to free
+	 */
+	void free(int address);
+
+	/**
+	 * Merges the free space of this allocator, as far as it can. The default
+	 * implementation does nothing, for allocators that never need it.
+	 */
+	default void defrag() {
+	}
+}
@@ -0,0 +1,93 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * The Java Flight Recorder events that MemorySpace emits.
+ * <p>
+ * All the events are disabled by default, and are enabled by a recording
+ * (for example with -XX:StartFlightRecording and a settings file, or with
+ * jdk.jfr.Recording.enable(name)). A disabled event costs a check of
+ * shouldCommit, and the JIT removes the allocation of the event object.
+ * Lengths and addresses are in words.
+ */
+public final class AllocatorEvents {
+
+	private AllocatorEvents() {
+	}
+
+	/** A successful malloc. */
+	@Name("MemorySpace.Malloc")
+	@Label("Malloc")
+	@Category("Memory Space")
+	@Description("A block was allocated")
+	@StackTrace(false)
+	public static final class Malloc extends Event {
+
+		@Label("Requested Length")
+		public int requestedLength;
+
+		@Label("Address")
+		@Description("The base address of the allocated block")
+		public int address;
+
+		@Label("Nodes Scanned")
+		@Description("The free list nodes visited by first fit")
+		public int nodesScanned;
+	}
+
+	/** A malloc that returned -1. */
+	@Name("MemorySpace.MallocFailed")
+	@Label("Malloc Failed")
+	@Category("Memory Space")
+	@Description("No free block was long enough for a malloc")
+	public static final class MallocFailed extends Event {
+
+		@Label("Requested Length")
+		public int requestedLength;
+
+		@Label("Free Words")
+		public long freeWords;
+
+		@Label("Largest Free Block")
+		public int largestFreeBlock;
+
+		@Label("Free Blocks")
+		public int freeBlocks;
+	}
+
+	/** A free. */
+	@Name("MemorySpace.Free")
+	@Label("Free")
+	@Category("Memory Space")
+	@Description("A block was freed")
+	@StackTrace(false)
+	public static final class Free extends Event {
+
+		@Label("Address")
+		public int address;
+
+		@Label("Length")
+		@Description("The length of the freed block, or 0 if no block had that address")
+		public int length;
+	}
+
+	/** A full defragmentation. */
+	@Name("MemorySpace.Defrag")
+	@Label("Defrag")
+	@Category("Memory Space")
+	@Description("The free blocks were merged with their neighbours")
+	public static final class Defrag extends Event {
+
+		@Label("Blocks Merged")
+		@Description("The number of free blocks that disappeared into their neighbours")
+		public int blocksMerged;
+
+		@Label("Free Blocks")
+		@Description("The number of free blocks left")
+		public int freeBlocks;
+	}
+}
@@ -0,0 +1,135 @@
+/**
+ * Represents a background thread that defragments a memory space while other
+ * threads keep calling malloc and free.
+ * <p>
+ * The work is done by MemorySpace.defragStep, in short slices: the thread
+ * locks the memory space (its own monitor) for one slice of at most
+ * nodesPerSlice nodes, and then releases it, so a malloc or free never waits
+ * for more than one slice. When a pass is complete, the thread sleeps for the
+ * given interval before it starts the next one.
+ * <p>
+ * All the other threads must synchronize on the memory space as well, for
+ * example by calling the malloc and free methods of this class.
+ */
+public class BackgroundDefragmenter implements Allocator, AutoCloseable {
+
+	private final MemorySpace space;    // the memory space to defragment
+	private final int nodesPerSlice;    // the work done per lock acquisition
+	private final long intervalMillis;  // the pause between passes
+	private final Thread thread;        // the background thread
+	private volatile boolean running;   // false once close was called
+	private volatile long passes;       // the number of completed passes
+
+	/**
+	 * Constructs a new background defragmenter. The thread is not started.
+	 *
+	 * @param space
+	 *        the memory space to defragment
+	 * @param nodesPerSlice
+	 *        the number of freeList nodes visited per slice
+	 * @param intervalMillis
+	 *        the pause between defragmentation passes, in milliseconds
+	 * @throws IllegalArgumentException
+	 *         if space is null, nodesPerSlice is not positive or intervalMillis is negative
+	 */
+	public BackgroundDefragmenter(MemorySpace space, int nodesPerSlice, long intervalMillis) {
+		if (space == null) {
+			throw new IllegalArgumentException("space must not be null");
+		}
+		if (nodesPerSlice <= 0) {
+			throw new IllegalArgumentException("nodesPerSlice must be positive");
+		}
+		if (intervalMillis < 0) {
+			throw new IllegalArgumentException("intervalMillis must not be negative");
+		}
+		this.space = space;
+		this.nodesPerSlice = nodesPerSlice;
+		this.intervalMillis = intervalMillis;
+		this.thread = new Thread(this::run, "MemorySpace-defrag");
+		this.thread.setDaemon(true);
+	}
+
+	/**
+	 * Starts the background thread.
+	 */
+	public void start() {
+		running = true;
+		thread.start();
+	}
+
+	/**
+	 * Stops the background thread, and waits for it to finish its current slice.
+	 */
+	public void close() {
+		running = false;
+		thread.interrupt();
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Allocates a memory block from the memory space, under its lock.
+	 *
+	 * @param length
+	 *        the length (in words) of the memory block that has to be allocated
+	 * @return the base address of the allocated block, or -1 if unable to allocate
+	 */
+	public int malloc(int length) {
+		synchronized (space) {
+			return space.malloc(length);
+		}
+	}
+
+	/**
+	 * Frees a memory block of the memory space, under its lock.
+	 *
+	 * @param address
+	 *        the base address of the block to free
+	 */
+	public void free(int address) {
+		synchronized (space) {
+			space.free(address);
+		}
+	}
+
+	/**
+	 * Defragments the memory space in one go, under its lock.
+	 */
+	public void defrag() {
+		synchronized (space) {
+			space.defrag();
+		}
+	}
+
+	/**
+	 * Gets the number of defragmentation passes completed so far.
+	 *
+	 * @return the number of completed passes
+	 */
+	public long getPassCount() {
+		return passes;
+	}
+
+	private void run() {
+		while (running) {
+			boolean done;
+			synchronized (space) {
+				done = space.defragStep(nodesPerSlice, 0);
+			}
+			if (!done) {
+				// lets the application threads take the lock between slices
+				Thread.yield();
+				continue;
+			}
+			passes++;
+			try {
+				Thread.sleep(intervalMillis);
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+}
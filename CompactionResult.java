@@ -0,0 +1,80 @@
+/**
+ * Represents the statistics of one call to MemorySpace.compact.
+ */
+public class CompactionResult {
+
+	private final int largestFreeBefore; // the longest free block before compaction
+	private final int largestFreeAfter;  // the longest free block after compaction
+	private final int blocksMoved;       // the number of blocks that were moved
+	private final long wordsMoved;       // the total length of the moved blocks
+	private final long nanos;            // the duration of the compaction
+
+	/**
+	 * Constructs the statistics of a compaction.
+	 * 
+	 * @param largestFreeBefore
+	 *        the length of the longest free block before compaction
+	 * @param largestFreeAfter
+	 *        the length of the longest free block after compaction
+	 * @param blocksMoved
+	 *        the number of blocks that were moved
+	 * @param wordsMoved
+	 *        the total length of the moved blocks, in words
+	 * @param nanos
+	 *        the duration of the compaction, in nanoseconds
+	 */
+	public CompactionResult(int largestFreeBefore, int largestFreeAfter, int blocksMoved,
+			long wordsMoved, long nanos) {
+		this.largestFreeBefore = largestFreeBefore;
+		this.largestFreeAfter = largestFreeAfter;
+		this.blocksMoved = blocksMoved;
+		this.wordsMoved = wordsMoved;
+		this.nanos = nanos;
+	}
+
+	/** Returns the length of the longest free block before compaction. */
+	public int getLargestFreeBefore() {
+		return largestFreeBefore;
+	}
+
+	/** Returns the length of the longest free block after compaction. */
+	public int getLargestFreeAfter() {
+		return largestFreeAfter;
+	}
+
+	/** Returns how much the longest free block grew, in words. */
+	public int getRecoveredWords() {
+		return largestFreeAfter - largestFreeBefore;
+	}
+
+	/** Returns the number of blocks that were moved. */
+	public int getBlocksMoved() {
+		return blocksMoved;
+	}
+
+	/** Returns the total length of the moved blocks, in words. */
+	public long getWordsMoved() {
+		return wordsMoved;
+	}
+
+	/** Returns the duration of the compaction, in nanoseconds. */
+	public long getNanos() {
+		return nanos;
+	}
+
+	/**
+	 * Returns the cost of the compaction per 2^20 words moved, in nanoseconds,
+	 * or 0 if no words were moved.
+	 */
+	public double getNanosPerMegaword() {
+		return wordsMoved == 0 ? 0 : nanos * (double) (1 << 20) / wordsMoved;
+	}
+
+	/**
+	 * A textual representation of these statistics, for debugging.
+	 */
+	public String toString() {
+		return "largest free " + largestFreeBefore + " -> " + largestFreeAfter + ", moved "
+				+ blocksMoved + " blocks (" + wordsMoved + " words) in " + nanos + " ns";
+	}
+}
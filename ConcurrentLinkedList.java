@@ -0,0 +1,206 @@
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicMarkableReference;
+
+/**
+ * Represents a lock-free list of memory blocks, ordered by base address.
+ * <p>
+ * This is a Harris-style list: a node is first deleted logically, by marking
+ * its next reference, and only then unlinked physically. Any thread that
+ * meets a marked node while searching helps unlinking it, so no thread ever
+ * waits for another one. The methods add, remove and indexOf may be called
+ * concurrently by any number of threads.
+ * <p>
+ * Reclamation of unlinked nodes is left to the garbage collector: a node that
+ * was unlinked stays reachable for as long as some thread still traverses it,
+ * so a node is never reused while it is in use (no hazard pointers or epochs
+ * are needed, and the ABA problem cannot occur).
+ */
+public class ConcurrentLinkedList {
+
+	/** A node of this list. The mark of next tells if the node is deleted. */
+	private static class ConcurrentNode {
+
+		final MemoryBlock block; // the memory block this node points at
+		final AtomicMarkableReference<ConcurrentNode> next;
+
+		ConcurrentNode(MemoryBlock block, ConcurrentNode next) {
+			this.block = block;
+			this.next = new AtomicMarkableReference<ConcurrentNode>(next, false);
+		}
+	}
+
+	private final ConcurrentNode head; // sentinel, before the first element
+	private final AtomicInteger size;  // number of unmarked elements
+
+	/**
+	 * Constructs a new, empty list.
+	 */
+	public ConcurrentLinkedList() {
+		head = new ConcurrentNode(null, null);
+		size = new AtomicInteger(0);
+	}
+
+	/**
+	 * Gets the current size of the list. When other threads modify the list
+	 * concurrently, the returned value is a momentary snapshot.
+	 *
+	 * @return The size of the list.
+	 */
+	public int getSize() {
+		return size.get();
+	}
+
+	/**
+	 * Inserts the given memory block into this list, keeping the list ordered
+	 * by base address.
+	 *
+	 * @param block
+	 *        the memory block to be inserted into the list
+	 * @return true if the block was inserted, false if the list already holds a
+	 *         block with the same base address
+	 * @throws IllegalArgumentException
+	 *         if block is null
+	 */
+	public boolean add(MemoryBlock block) {
+		if (block == null) {
+			throw new IllegalArgumentException("block must not be null");
+		}
+		while (true) {
+			ConcurrentNode[] window = find(block.baseAddress);
+			ConcurrentNode pred = window[0];
+			ConcurrentNode curr = window[1];
+			if (curr != null && curr.block.baseAddress == block.baseAddress) {
+				return false;
+			}
+			ConcurrentNode node = new ConcurrentNode(block, curr);
+			if (pred.next.compareAndSet(curr, node, false, false)) {
+				size.incrementAndGet();
+				return true;
+			}
+			// pred changed or was deleted meanwhile, search again
+		}
+	}
+
+	/**
+	 * Removes from this list the node pointing to the given memory block.
+	 * When two threads remove the same block, exactly one of them succeeds.
+	 *
+	 * @param block
+	 *        the memory block that should be removed from the list
+	 * @return true if this call removed the block, false if the block is not in
+	 *         this list
+	 * @throws IllegalArgumentException
+	 *         if block is null
+	 */
+	public boolean remove(MemoryBlock block) {
+		if (block == null) {
+			throw new IllegalArgumentException("block must not be null");
+		}
+		while (true) {
+			ConcurrentNode[] window = find(block.baseAddress);
+			ConcurrentNode pred = window[0];
+			ConcurrentNode curr = window[1];
+			if (curr == null || !curr.block.equals(block)) {
+				return false;
+			}
+			ConcurrentNode succ = curr.next.getReference();
+			// logical deletion: whoever sets the mark owns the removal
+			if (!curr.next.compareAndSet(succ, succ, false, true)) {
+				continue;
+			}
+			size.decrementAndGet();
+			// physical deletion, if it fails a later find will do it
+			pred.next.compareAndSet(curr, succ, false, false);
+			return true;
+		}
+	}
+
+	/**
+	 * Gets the index of the node pointing to the given memory block. The index
+	 * counts only the nodes that were not deleted at the time they were visited.
+	 *
+	 * @param block
+	 *        the given memory block
+	 * @return the index of the block, or -1 if the block is not in this list
+	 */
+	public int indexOf(MemoryBlock block) {
+		boolean[] marked = { false };
+		ConcurrentNode current = head.next.getReference();
+		int count = 0;
+		while (current != null && current.block.baseAddress <= block.baseAddress) {
+			ConcurrentNode succ = current.next.get(marked);
+			if (!marked[0]) {
+				if (current.block.equals(block)) {
+					return count;
+				}
+				count++;
+			}
+			current = succ;
+		}
+		// block was not found
+		return -1;
+	}
+
+	/**
+	 * Checks if this list holds the given memory block.
+	 *
+	 * @param block
+	 *        the given memory block
+	 * @return true if the block is in this list, false otherwise
+	 */
+	public boolean contains(MemoryBlock block) {
+		return indexOf(block) != -1;
+	}
+
+	/**
+	 * Finds the window (pred, curr) in which curr is the first unmarked node whose
+	 * base address is at least the given address, and pred is its unmarked
+	 * predecessor. Marked nodes met on the way are unlinked.
+	 */
+	private ConcurrentNode[] find(int baseAddress) {
+		boolean[] marked = { false };
+		retry: while (true) {
+			ConcurrentNode pred = head;
+			ConcurrentNode curr = pred.next.getReference();
+			while (true) {
+				if (curr == null) {
+					return new ConcurrentNode[] { pred, null };
+				}
+				ConcurrentNode succ = curr.next.get(marked);
+				while (marked[0]) {
+					// helps a remover to unlink curr
+					if (!pred.next.compareAndSet(curr, succ, false, false)) {
+						continue retry;
+					}
+					curr = succ;
+					if (curr == null) {
+						return new ConcurrentNode[] { pred, null };
+					}
+					succ = curr.next.get(marked);
+				}
+				if (curr.block.baseAddress >= baseAddress) {
+					return new ConcurrentNode[] { pred, curr };
+				}
+				pred = curr;
+				curr = succ;
+			}
+		}
+	}
+
+	/**
+	 * A textual representation of this list, for debugging.
+	 */
+	public String toString() {
+		StringBuilder str = new StringBuilder();
+		boolean[] marked = { false };
+		ConcurrentNode current = head.next.getReference();
+		while (current != null) {
+			ConcurrentNode succ = current.next.get(marked);
+			if (!marked[0]) {
+				str.append("(" + current.block.baseAddress + " , " + current.block.length + ") ");
+			}
+			current = succ;
+		}
+		return str.toString();
+	}
+}
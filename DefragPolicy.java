@@ -0,0 +1,9 @@
+/**
+ * Represents what MemorySpace.malloc does when it fails to find a free block
+ * that is long enough.
+ */
+public enum DefragPolicy {
+    NONE,      // returns -1 right away
+    TARGETED,  // merges free blocks only until one is long enough, then retries
+    FULL       // calls defrag, then retries
+}
@@ -0,0 +1,289 @@
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.function.LongSupplier;
+
+/**
+ * Represents an extent allocator on top of a memory space, with time-decay
+ * purging of dirty extents, as in jemalloc.
+ * <p>
+ * An extent is a block allocated from the memory space. When an extent is
+ * freed, it is not freed in the memory space right away: it becomes dirty, and
+ * a later malloc of the same length reuses it without touching the free list.
+ * Dirty extents are purged (freed in the memory space, and merged into the
+ * clean free space by defrag) on a decay curve: an extent that became dirty
+ * t nanoseconds ago may stay dirty with weight 1 - smoothstep(t / decayTime),
+ * so that the number of dirty words decays smoothly to zero over decayTime
+ * once the traffic stops. A burst of frees followed by a burst of mallocs
+ * of the same lengths is served from the dirty extents, while fragmented
+ * dirty space is not kept for longer than decayTime.
+ */
+public class ExtentAllocator implements Allocator {
+
+	/** The number of steps the decay time is divided into; purging runs once per step. */
+	private static final int DECAY_STEPS = 200;
+
+	/** A dirty extent. */
+	private static class Extent {
+
+		final int baseAddress; // the address of the extent
+		final int length;      // the length of the extent, in words
+		final long dirtyTime;  // when the extent became dirty, in nanoseconds
+		boolean reused;        // true if the extent was reused, and is no longer dirty
+
+		Extent(int baseAddress, int length, long dirtyTime) {
+			this.baseAddress = baseAddress;
+			this.length = length;
+			this.dirtyTime = dirtyTime;
+		}
+	}
+
+	private final MemorySpace space;   // the memory space that extents come from
+	private final int maxSize;         // the size of the memory space
+	private final long decayNanos;     // the decay time; 0 means purge immediately
+	private final LongSupplier clock;  // the time source, in nanoseconds
+
+	private final HashMap<Integer, Integer> active;            // allocated extents: address to length
+	private final HashMap<Integer, ArrayDeque<Extent>> dirty;  // dirty extents, by length, newest first
+	private final ArrayDeque<Extent> dirtyByAge;               // dirty extents, oldest first
+
+	private long activeWords;  // words in allocated extents
+	private long dirtyWords;   // words in dirty extents
+	private long purgedWords;  // words purged so far
+	private long nextPurge;    // the time of the next purge step
+
+	/**
+	 * Constructs a new extent allocator, managing a new memory space of a given
+	 * maximal size.
+	 *
+	 * @param maxSize
+	 *        the size of the memory space to be managed
+	 * @param decayMillis
+	 *        the time it takes for dirty extents to be purged, in milliseconds
+	 */
+	public ExtentAllocator(int maxSize, long decayMillis) {
+		this(maxSize, decayMillis, System::nanoTime);
+	}
+
+	/**
+	 * Constructs a new extent allocator, managing a new memory space of a given
+	 * maximal size, with a given time source.
+	 *
+	 * @param maxSize
+	 *        the size of the memory space to be managed
+	 * @param decayMillis
+	 *        the time it takes for dirty extents to be purged, in milliseconds
+	 * @param clock
+	 *        the time source, in nanoseconds
+	 * @throws IllegalArgumentException
+	 *         if decayMillis is negative, or clock is null
+	 */
+	public ExtentAllocator(int maxSize, long decayMillis, LongSupplier clock) {
+		if (decayMillis < 0 || clock == null) {
+			throw new IllegalArgumentException("decayMillis must not be negative, and clock must not be null");
+		}
+		this.space = new MemorySpace(maxSize);
+		this.maxSize = maxSize;
+		this.decayNanos = decayMillis * 1000000L;
+		this.clock = clock;
+		this.active = new HashMap<Integer, Integer>();
+		this.dirty = new HashMap<Integer, ArrayDeque<Extent>>();
+		this.dirtyByAge = new ArrayDeque<Extent>();
+	}
+
+	/**
+	 * Allocates a memory block of a requested length (in words). A dirty extent
+	 * of exactly that length is reused if there is one.
+	 *
+	 * @param length
+	 *        the length (in words) of the memory block that has to be allocated
+	 * @return the base address of the allocated block, or -1 if unable to allocate
+	 */
+	public int malloc(int length) {
+		long now = clock.getAsLong();
+		decay(now);
+		ArrayDeque<Extent> extents = dirty.get(length);
+		if (extents != null) {
+			Extent extent = extents.pollFirst();
+			if (extents.isEmpty()) {
+				dirty.remove(length);
+			}
+			extent.reused = true;
+			dirtyWords -= length;
+			activate(extent.baseAddress, length);
+			return extent.baseAddress;
+		}
+		int address = space.malloc(length);
+		if (address == -1 && dirtyWords > 0) {
+			// the dirty extents may merge into a long enough block
+			purge(0);
+			address = space.malloc(length);
+		}
+		if (address != -1) {
+			activate(address, length);
+		}
+		return address;
+	}
+
+	/**
+	 * Frees the memory block whose base address equals the given address. The
+	 * block becomes a dirty extent.
+	 *
+	 * @param address
+	 *        the base address of the block to free
+	 * @throws IllegalArgumentException
+	 *         if the address is not the address of an allocated block
+	 */
+	public void free(int address) {
+		Integer length = active.remove(address);
+		if (length == null) {
+			throw new IllegalArgumentException("address is not the address of an allocated block");
+		}
+		activeWords -= length;
+		long now = clock.getAsLong();
+		Extent extent = new Extent(address, length, now);
+		dirty.computeIfAbsent(length, k -> new ArrayDeque<Extent>()).addFirst(extent);
+		dirtyByAge.addLast(extent);
+		dirtyWords += length;
+		decay(now);
+	}
+
+	/**
+	 * Purges the dirty extents that the decay curve no longer allows to keep.
+	 * Called by malloc and free; may also be called by an idle thread.
+	 */
+	public void decay() {
+		decay(clock.getAsLong());
+	}
+
+	/**
+	 * Purges all the dirty extents.
+	 */
+	public void purgeAll() {
+		purge(0);
+	}
+
+	/**
+	 * Purges all the dirty extents, and defragments the memory space.
+	 */
+	public void defrag() {
+		if (dirtyWords > 0) {
+			purge(0);
+		} else {
+			space.defrag();
+		}
+	}
+
+	/**
+	 * Gets the number of words in allocated blocks.
+	 *
+	 * @return the active words
+	 */
+	public long getActiveWords() {
+		return activeWords;
+	}
+
+	/**
+	 * Gets the number of words in dirty extents, that were freed but not purged.
+	 *
+	 * @return the dirty words
+	 */
+	public long getDirtyWords() {
+		return dirtyWords;
+	}
+
+	/**
+	 * Gets the number of words that are free in the memory space.
+	 *
+	 * @return the clean words
+	 */
+	public long getCleanWords() {
+		return maxSize - activeWords - dirtyWords;
+	}
+
+	/**
+	 * Gets the number of words that this allocator retains from the memory
+	 * space: the active words and the dirty words.
+	 *
+	 * @return the retained words
+	 */
+	public long getRetainedWords() {
+		return activeWords + dirtyWords;
+	}
+
+	/**
+	 * Gets the number of words that were purged so far.
+	 *
+	 * @return the purged words
+	 */
+	public long getPurgedWords() {
+		return purgedWords;
+	}
+
+	private void activate(int address, int length) {
+		active.put(address, length);
+		activeWords += length;
+	}
+
+	/** Runs one purge step, if the current step of the decay time has passed. */
+	private void decay(long now) {
+		if (dirtyWords == 0 || now - nextPurge < 0) {
+			return;
+		}
+		nextPurge = now + decayNanos / DECAY_STEPS;
+		if (decayNanos == 0) {
+			purge(0);
+			return;
+		}
+		dirtyByAge.removeIf(extent -> extent.reused);
+		double limit = 0;
+		for (Extent extent : dirtyByAge) {
+			double age = (double) (now - extent.dirtyTime) / decayNanos;
+			limit += extent.length * (1 - smoothstep(age));
+		}
+		purge((long) limit);
+	}
+
+	/** Purges the oldest dirty extents, until at most limit dirty words are left. */
+	private void purge(long limit) {
+		if (dirtyWords <= limit) {
+			return;
+		}
+		while (dirtyWords > limit) {
+			Extent extent = dirtyByAge.pollFirst();
+			if (extent.reused) {
+				continue;
+			}
+			ArrayDeque<Extent> extents = dirty.get(extent.length);
+			extents.removeLastOccurrence(extent);
+			if (extents.isEmpty()) {
+				dirty.remove(extent.length);
+			}
+			dirtyWords -= extent.length;
+			purgedWords += extent.length;
+			space.free(extent.baseAddress);
+		}
+		space.defrag();
+		while (!dirtyByAge.isEmpty() && dirtyByAge.peekFirst().reused) {
+			dirtyByAge.pollFirst();
+		}
+	}
+
+	/** The smoothstep function, clamped to [0, 1]. */
+	private static double smoothstep(double x) {
+		if (x <= 0) {
+			return 0;
+		}
+		if (x >= 1) {
+			return 1;
+		}
+		return x * x * (3 - 2 * x);
+	}
+
+	/**
+	 * A textual representation of this allocator, for debugging.
+	 */
+	public String toString() {
+		return "active " + activeWords + ", dirty " + dirtyWords + ", clean "
+				+ getCleanWords() + "\n" + space.toString();
+	}
+}
@@ -0,0 +1,250 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Represents a generational memory space: a nursery for new blocks, and a
+ * tenured space for blocks that live long.
+ * <p>
+ * The nursery is a few regions, carved from the tenured space. New blocks are
+ * allocated from the current region by bumping a pointer, and a region counts
+ * its live blocks. When the last live block of the current region is freed, or
+ * when the allocator comes back to a region that has no live blocks, the
+ * region is reset in O(1). So a block that is freed soon after it is allocated
+ * costs no free-list operations at all.
+ * <p>
+ * Each time the allocator moves on to the next region and finds it still has
+ * live blocks, the region survives an epoch. A region that survives
+ * promoteAfter epochs is promoted: its live blocks become ordinary blocks of
+ * the tenured space (their addresses do not change), the rest of the region
+ * becomes free space of the tenured space, and a new region is carved.
+ * <p>
+ * Blocks longer than a quarter of a region are allocated directly in the
+ * tenured space, which is managed by the free-list logic of MemorySpace.
+ */
+public class GenerationalMemorySpace implements Allocator {
+
+	private final MemorySpace tenured;  // the tenured space, holding the regions too
+	private final int regionLength;     // the length of each region, in words
+	private final int promoteAfter;     // epochs a region survives before promotion
+
+	private final int[] base;           // the base address of each region, or -1
+	private final int[] top;            // the bump pointer of each region
+	private final int[] live;           // the number of live blocks in each region
+	private final int[] age;            // the epochs each region has survived
+	private int current;                // the region that new blocks come from
+
+	// Live blocks of the nursery: address to length
+	private final HashMap<Integer, Integer> nursery;
+
+	private long nurseryMallocs;       // blocks allocated in the nursery
+	private long promotedBlocks;       // blocks promoted to the tenured space
+
+	/**
+	 * Constructs a new generational memory space.
+	 *
+	 * @param maxSize
+	 *        the size of the memory space to be managed
+	 * @param regionLength
+	 *        the length of each nursery region, in words
+	 * @param regionCount
+	 *        the number of nursery regions
+	 * @param promoteAfter
+	 *        the number of epochs a region survives before it is promoted
+	 * @throws IllegalArgumentException
+	 *         if the numbers are not positive, or the regions do not fit in maxSize
+	 */
+	public GenerationalMemorySpace(int maxSize, int regionLength, int regionCount, int promoteAfter) {
+		if (regionLength <= 0 || regionCount <= 0 || promoteAfter <= 0) {
+			throw new IllegalArgumentException("regionLength, regionCount and promoteAfter must be positive");
+		}
+		this.tenured = new MemorySpace(maxSize);
+		this.regionLength = regionLength;
+		this.promoteAfter = promoteAfter;
+		this.base = new int[regionCount];
+		this.top = new int[regionCount];
+		this.live = new int[regionCount];
+		this.age = new int[regionCount];
+		for (int i = 0; i < regionCount; i++) {
+			base[i] = tenured.malloc(regionLength);
+			if (base[i] == -1) {
+				throw new IllegalArgumentException("The nursery regions do not fit in maxSize");
+			}
+			top[i] = base[i];
+		}
+		this.nursery = new HashMap<Integer, Integer>();
+	}
+
+	/**
+	 * Allocates a memory block of a requested length (in words).
+	 *
+	 * @param length
+	 *        the length (in words) of the memory block that has to be allocated
+	 * @return the base address of the allocated block, or -1 if unable to allocate
+	 * @throws IllegalArgumentException
+	 *         if length is not positive
+	 */
+	public int malloc(int length) {
+		if (length <= 0) {
+			throw new IllegalArgumentException("length must be positive");
+		}
+		if (length > regionLength / 4) {
+			return tenured.malloc(length);
+		}
+		if (base[current] == -1 || top[current] + length > base[current] + regionLength) {
+			if (!advance()) {
+				return tenured.malloc(length);
+			}
+		}
+		int address = top[current];
+		top[current] += length;
+		live[current]++;
+		nursery.put(address, length);
+		nurseryMallocs++;
+		return address;
+	}
+
+	/**
+	 * Frees the memory block whose base address equals the given address.
+	 *
+	 * @param address
+	 *        the base address of the block to free
+	 * @throws IllegalArgumentException
+	 *         if the address is in a nursery region, but is not the address of
+	 *         a live nursery block
+	 */
+	public void free(int address) {
+		if (nursery.remove(address) == null) {
+			// the regions are allocated blocks of the tenured space, and must
+			// not be freed there by a double or stray free
+			if (regionContaining(address) != -1) {
+				throw new IllegalArgumentException("address is not an allocated block of the nursery");
+			}
+			tenured.free(address);
+			return;
+		}
+		int region = regionOf(address);
+		live[region]--;
+		if (live[region] == 0 && region == current) {
+			// every block of the current region is dead, start it over
+			top[region] = base[region];
+			age[region] = 0;
+		}
+	}
+
+	/**
+	 * Defragments the tenured space. The nursery regions need no defragmentation.
+	 */
+	public void defrag() {
+		tenured.defrag();
+	}
+
+	/**
+	 * Gets the tenured space. The nursery regions appear in it as allocated blocks.
+	 *
+	 * @return the tenured space
+	 */
+	public MemorySpace getTenuredSpace() {
+		return tenured;
+	}
+
+	/**
+	 * Gets the number of blocks that were allocated in the nursery.
+	 *
+	 * @return the number of nursery allocations
+	 */
+	public long getNurseryMallocCount() {
+		return nurseryMallocs;
+	}
+
+	/**
+	 * Gets the number of blocks that were promoted to the tenured space.
+	 *
+	 * @return the number of promoted blocks
+	 */
+	public long getPromotedCount() {
+		return promotedBlocks;
+	}
+
+	/**
+	 * Moves to the next region that can be reset, promoting the regions that
+	 * survived too many epochs on the way.
+	 * Returns false if no region can be used.
+	 */
+	private boolean advance() {
+		for (int i = 1; i <= base.length; i++) {
+			int region = (current + i) % base.length;
+			if (base[region] == -1) {
+				continue;
+			}
+			if (live[region] > 0) {
+				age[region]++;
+				if (age[region] < promoteAfter) {
+					continue;
+				}
+				promote(region);
+				if (base[region] == -1) {
+					continue;
+				}
+			}
+			top[region] = base[region];
+			age[region] = 0;
+			current = region;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Turns the live blocks of a region into tenured blocks, and replaces the
+	 * region with a new one.
+	 */
+	private void promote(int region) {
+		int start = base[region];
+		ArrayList<Integer> survivors = new ArrayList<Integer>();
+		Iterator<Map.Entry<Integer, Integer>> it = nursery.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<Integer, Integer> entry = it.next();
+			if (entry.getKey() >= start && entry.getKey() < start + regionLength) {
+				survivors.add(entry.getKey());
+			}
+		}
+		Collections.sort(survivors);
+		tenured.free(start);
+		for (int address : survivors) {
+			tenured.claim(address, nursery.remove(address));
+		}
+		promotedBlocks += survivors.size();
+		live[region] = 0;
+		age[region] = 0;
+		base[region] = tenured.malloc(regionLength);
+		top[region] = base[region];
+	}
+
+	private int regionOf(int address) {
+		int region = regionContaining(address);
+		if (region == -1) {
+			throw new IllegalStateException("nursery block outside the nursery");
+		}
+		return region;
+	}
+
+	/** Returns the region that contains the given address, or -1 if there is none. */
+	private int regionContaining(int address) {
+		for (int i = 0; i < base.length; i++) {
+			if (base[i] != -1 && address >= base[i] && address < base[i] + regionLength) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * A textual representation of the tenured space, for debugging.
+	 */
+	public String toString() {
+		return tenured.toString();
+	}
+}
@@ -0,0 +1,431 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Represents a multi-heap allocator on top of a memory space, as in Hoard.
+ * <p>
+ * The memory space is handed out in superblocks of a fixed length, and each
+ * superblock is carved into blocks of one size class (a power of two). Every
+ * thread allocates from its own heap (threads are assigned heaps round-robin,
+ * on their first malloc), so most calls of malloc and free lock only that
+ * heap. A heap that runs out of free blocks takes a superblock from the
+ * global heap, or a new one from the memory space.
+ * <p>
+ * To bound memory blowup, each heap keeps the invariant
+ * used &gt;= allocated - slack * superblockLength or
+ * used &gt;= (1 - emptyFraction) * allocated, where used is the number of
+ * words in allocated blocks, and allocated is the number of words in the
+ * heap's superblocks. When a free breaks the invariant, a superblock that is
+ * at least emptyFraction empty moves to the global heap, where any other
+ * heap can reuse it. Empty superblocks of the global heap, beyond the slack,
+ * are freed back to the memory space.
+ * <p>
+ * Requests longer than half a superblock are passed directly to the memory
+ * space. The lock of the memory space is its own monitor, so other users of
+ * the space should synchronize on it as well.
+ */
+public class HoardAllocator implements Allocator {
+
+	/** A superblock: one block of the memory space, carved into equal blocks. */
+	private static class Superblock {
+
+		final int baseAddress; // the address of the first block
+		int sizeClass;         // blocks are 2^sizeClass words long
+		int capacity;          // the number of blocks
+		int[] freeBlocks;      // a stack of the indices of the free blocks
+		int freeCount;         // the number of free blocks
+		long[] bitmap;         // bit i is set if block i is allocated
+		volatile Heap owner;   // the heap that this superblock belongs to
+		boolean inFull;        // true if it is in the owner's list of full superblocks
+		Superblock prev;       // the previous superblock in the owner's list
+		Superblock next;       // the next superblock in the owner's list
+
+		Superblock(int baseAddress) {
+			this.baseAddress = baseAddress;
+		}
+
+		/** Carves this (empty) superblock into blocks of the given size class. */
+		void format(int sizeClass, int superblockLength) {
+			this.sizeClass = sizeClass;
+			this.capacity = superblockLength >>> sizeClass;
+			this.freeBlocks = new int[capacity];
+			for (int i = 0; i < capacity; i++) {
+				freeBlocks[i] = capacity - 1 - i;
+			}
+			this.freeCount = capacity;
+			this.bitmap = new long[(capacity + 63) / 64];
+		}
+
+		int used() {
+			return capacity - freeCount;
+		}
+	}
+
+	/** A heap: lists of superblocks, by size class, and usage counters. */
+	private static class Heap {
+
+		final Superblock[] available; // per size class, superblocks with free blocks
+		final Superblock[] full;      // per size class, superblocks with no free blocks
+		long used;                    // words in allocated blocks
+		long allocated;               // words in the superblocks of this heap
+
+		Heap(int sizeClasses) {
+			available = new Superblock[sizeClasses];
+			full = new Superblock[sizeClasses];
+		}
+
+		void add(Superblock sb) {
+			sb.owner = this;
+			link(sb);
+			used += (long) sb.used() << sb.sizeClass;
+			allocated += (long) sb.capacity << sb.sizeClass;
+		}
+
+		void remove(Superblock sb) {
+			unlink(sb);
+			used -= (long) sb.used() << sb.sizeClass;
+			allocated -= (long) sb.capacity << sb.sizeClass;
+		}
+
+		/** Moves a superblock that became full, or stopped being full, to the right list. */
+		void relink(Superblock sb) {
+			unlink(sb);
+			link(sb);
+		}
+
+		private void link(Superblock sb) {
+			Superblock[] lists = sb.freeCount == 0 ? full : available;
+			sb.inFull = sb.freeCount == 0;
+			sb.prev = null;
+			sb.next = lists[sb.sizeClass];
+			if (sb.next != null) {
+				sb.next.prev = sb;
+			}
+			lists[sb.sizeClass] = sb;
+		}
+
+		private void unlink(Superblock sb) {
+			if (sb.prev != null) {
+				sb.prev.next = sb.next;
+			} else if (sb.inFull) {
+				full[sb.sizeClass] = sb.next;
+			} else {
+				available[sb.sizeClass] = sb.next;
+			}
+			if (sb.next != null) {
+				sb.next.prev = sb.prev;
+			}
+			sb.prev = null;
+			sb.next = null;
+		}
+
+		int count() {
+			int count = 0;
+			for (Superblock[] lists : new Superblock[][] { available, full }) {
+				for (Superblock first : lists) {
+					for (Superblock sb = first; sb != null; sb = sb.next) {
+						count++;
+					}
+				}
+			}
+			return count;
+		}
+	}
+
+	private final MemorySpace space;      // the memory space that superblocks come from
+	private final int superblockLength;   // the length of each superblock, in words
+	private final double emptyFraction;   // see the class documentation
+	private final int slack;              // see the class documentation
+	private final int sizeClasses;        // size classes are 0 .. sizeClasses - 1
+
+	private final Heap global;            // the global heap
+	private final Heap[] heaps;           // the per-thread heaps
+	private final AtomicInteger nextHeap; // the heap that the next new thread gets
+	private final ThreadLocal<Heap> heapOf; // the heap of each thread
+	private int globalEmptyCount;         // empty superblocks in the global heap
+
+	// All the superblocks, by base address
+	private final ConcurrentSkipListMap<Integer, Superblock> superblocks;
+
+	// Lengths of the blocks that were passed directly to the memory space
+	private final ConcurrentHashMap<Integer, Integer> largeBlocks;
+
+	/**
+	 * Constructs a new allocator with 2 * the number of available processors
+	 * per-thread heaps, emptyFraction 1/4 and slack 4.
+	 *
+	 * @param space
+	 *        the memory space that the superblocks are allocated from
+	 * @param superblockLength
+	 *        the length of each superblock, in words
+	 */
+	public HoardAllocator(MemorySpace space, int superblockLength) {
+		this(space, superblockLength, 2 * Runtime.getRuntime().availableProcessors(), 0.25, 4);
+	}
+
+	/**
+	 * Constructs a new allocator.
+	 *
+	 * @param space
+	 *        the memory space that the superblocks are allocated from
+	 * @param superblockLength
+	 *        the length of each superblock, in words (at least 2)
+	 * @param heapCount
+	 *        the number of per-thread heaps
+	 * @param emptyFraction
+	 *        the emptiness threshold, between 0 and 1
+	 * @param slack
+	 *        the number of superblocks a heap may hold above the threshold
+	 * @throws IllegalArgumentException
+	 *         if space is null, or if one of the numbers is out of range
+	 */
+	public HoardAllocator(MemorySpace space, int superblockLength, int heapCount,
+			double emptyFraction, int slack) {
+		if (space == null) {
+			throw new IllegalArgumentException("space must not be null");
+		}
+		if (superblockLength < 2 || heapCount <= 0 || slack < 0
+				|| !(emptyFraction > 0 && emptyFraction < 1)) {
+			throw new IllegalArgumentException("allocator parameters are out of range");
+		}
+		this.space = space;
+		this.superblockLength = superblockLength;
+		this.emptyFraction = emptyFraction;
+		this.slack = slack;
+		// the largest class holds at least two blocks
+		this.sizeClasses = 31 - Integer.numberOfLeadingZeros(superblockLength / 2) + 1;
+		this.global = new Heap(sizeClasses);
+		this.heaps = new Heap[heapCount];
+		for (int i = 0; i < heapCount; i++) {
+			heaps[i] = new Heap(sizeClasses);
+		}
+		this.nextHeap = new AtomicInteger();
+		this.heapOf = ThreadLocal.withInitial(
+				() -> heaps[Math.floorMod(nextHeap.getAndIncrement(), heaps.length)]);
+		this.superblocks = new ConcurrentSkipListMap<Integer, Superblock>();
+		this.largeBlocks = new ConcurrentHashMap<Integer, Integer>();
+	}
+
+	/**
+	 * Allocates a memory block of a requested length (in words). The block may
+	 * be longer than requested: it is rounded up to a power of two.
+	 *
+	 * @param length
+	 *        the length (in words) of the memory block that has to be allocated
+	 * @return the base address of the allocated block, or -1 if unable to allocate
+	 * @throws IllegalArgumentException
+	 *         if length is not positive
+	 */
+	public int malloc(int length) {
+		if (length <= 0) {
+			throw new IllegalArgumentException("length must be positive");
+		}
+		int sizeClass = 32 - Integer.numberOfLeadingZeros(length - 1);
+		if (sizeClass >= sizeClasses) {
+			int address;
+			synchronized (space) {
+				address = space.malloc(length);
+			}
+			if (address != -1) {
+				largeBlocks.put(address, length);
+			}
+			return address;
+		}
+		Heap heap = heapOf.get();
+		synchronized (heap) {
+			Superblock sb = heap.available[sizeClass];
+			if (sb == null) {
+				sb = fetchSuperblock(heap, sizeClass);
+				if (sb == null) {
+					return -1;
+				}
+			}
+			int index = sb.freeBlocks[--sb.freeCount];
+			sb.bitmap[index >>> 6] |= 1L << index;
+			heap.used += 1L << sizeClass;
+			if (sb.freeCount == 0) {
+				heap.relink(sb);
+			}
+			return sb.baseAddress + (index << sizeClass);
+		}
+	}
+
+	/**
+	 * Frees the memory block whose base address equals the given address.
+	 * Any thread may free any block.
+	 *
+	 * @param address
+	 *        the base address of the block to free
+	 * @throws IllegalArgumentException
+	 *         if the address is not the address of an allocated block
+	 */
+	public void free(int address) {
+		if (largeBlocks.remove(address) != null) {
+			synchronized (space) {
+				space.free(address);
+			}
+			return;
+		}
+		Map.Entry<Integer, Superblock> entry = superblocks.floorEntry(address);
+		if (entry == null || address >= entry.getKey() + superblockLength) {
+			throw new IllegalArgumentException("address is not a block of this allocator");
+		}
+		Superblock sb = entry.getValue();
+		while (true) {
+			Heap heap = sb.owner;
+			synchronized (heap) {
+				if (sb.owner != heap) {
+					continue; // moved to another heap meanwhile
+				}
+				int offset = address - sb.baseAddress;
+				int index = offset >>> sb.sizeClass;
+				if ((offset & ((1 << sb.sizeClass) - 1)) != 0 || index >= sb.capacity
+						|| (sb.bitmap[index >>> 6] & (1L << index)) == 0) {
+					throw new IllegalArgumentException("address is not an allocated block of this allocator");
+				}
+				boolean wasFull = sb.freeCount == 0;
+				sb.bitmap[index >>> 6] &= ~(1L << index);
+				sb.freeBlocks[sb.freeCount++] = index;
+				heap.used -= 1L << sb.sizeClass;
+				if (wasFull) {
+					heap.relink(sb);
+				}
+				if (heap == global) {
+					if (sb.freeCount == sb.capacity) {
+						globalEmptyCount++;
+						releaseGlobalEmpty();
+					}
+				} else {
+					while (heap.used < heap.allocated - (long) slack * superblockLength
+							&& heap.used < (1 - emptyFraction) * heap.allocated
+							&& moveToGlobal(heap)) {
+						// moves superblocks until the invariant holds again
+					}
+				}
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Gets the number of superblocks in the global heap.
+	 *
+	 * @return the number of superblocks in the global heap
+	 */
+	public int getGlobalSuperblockCount() {
+		synchronized (global) {
+			return global.count();
+		}
+	}
+
+	/**
+	 * Gets the number of superblocks that this allocator presently holds.
+	 *
+	 * @return the number of superblocks
+	 */
+	public int getSuperblockCount() {
+		return superblocks.size();
+	}
+
+	/**
+	 * Adds to heap a superblock for the given class from the global heap: one
+	 * of that class with free blocks, or an empty one of any class. If there
+	 * is none, allocates a new superblock from the memory space. Called with
+	 * the lock of heap held.
+	 * <p>
+	 * The superblock moves to heap while global is still locked, so that a
+	 * concurrent free, which locks the owner of the superblock, finds it
+	 * either in global or in heap, and never in between.
+	 */
+	private Superblock fetchSuperblock(Heap heap, int sizeClass) {
+		synchronized (global) {
+			Superblock sb = global.available[sizeClass];
+			if (sb == null) {
+				sb = findEmpty(global);
+				if (sb != null) {
+					global.remove(sb);
+					globalEmptyCount--;
+					sb.format(sizeClass, superblockLength);
+					heap.add(sb);
+					return sb;
+				}
+			} else {
+				global.remove(sb);
+				if (sb.freeCount == sb.capacity) {
+					globalEmptyCount--;
+				}
+				heap.add(sb);
+				return sb;
+			}
+		}
+		int address;
+		synchronized (space) {
+			address = space.malloc(superblockLength);
+		}
+		if (address == -1) {
+			return null;
+		}
+		Superblock sb = new Superblock(address);
+		sb.format(sizeClass, superblockLength);
+		heap.add(sb);
+		superblocks.put(address, sb);
+		return sb;
+	}
+
+	/**
+	 * Moves a superblock that is at least emptyFraction empty from heap to global.
+	 * Returns false if the heap has no such superblock.
+	 */
+	private boolean moveToGlobal(Heap heap) {
+		for (Superblock first : heap.available) {
+			for (Superblock sb = first; sb != null; sb = sb.next) {
+				if (sb.freeCount >= emptyFraction * sb.capacity) {
+					heap.remove(sb);
+					synchronized (global) {
+						global.add(sb);
+						if (sb.freeCount == sb.capacity) {
+							globalEmptyCount++;
+							releaseGlobalEmpty();
+						}
+					}
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/** Frees empty superblocks of the global heap beyond the slack. Called with global locked. */
+	private void releaseGlobalEmpty() {
+		while (globalEmptyCount > slack) {
+			Superblock sb = findEmpty(global);
+			global.remove(sb);
+			globalEmptyCount--;
+			superblocks.remove(sb.baseAddress);
+			synchronized (space) {
+				space.free(sb.baseAddress);
+			}
+		}
+	}
+
+	private static Superblock findEmpty(Heap heap) {
+		for (Superblock first : heap.available) {
+			for (Superblock sb = first; sb != null; sb = sb.next) {
+				if (sb.freeCount == sb.capacity) {
+					return sb;
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * A textual representation of this allocator, for debugging.
+	 */
+	public String toString() {
+		return "superblocks: " + getSuperblockCount() + ", in global heap: "
+				+ getGlobalSuperblockCount();
+	}
+}
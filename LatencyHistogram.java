@@ -0,0 +1,178 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Represents a histogram of latencies, in nanoseconds, with log-linear
+ * buckets, as in HdrHistogram.
+ * <p>
+ * Values below 2^SUB_BITS have a bucket each. Above that, every power of two
+ * is divided into 2^(SUB_BITS - 1) buckets of equal width, so a value is
+ * reported with a relative error of at most 2^(1 - SUB_BITS), about 3%.
+ * Values above 2^MAX_BITS nanoseconds (about 18 minutes) are clamped.
+ * <p>
+ * Recording a value increments one counter of an AtomicLongArray: it does not
+ * allocate, and it does not lock. A snapshot copies the counters, so the
+ * percentiles can be read while other threads keep recording.
+ */
+public class LatencyHistogram {
+
+	/** log2 of the number of buckets below 2^SUB_BITS. */
+	private static final int SUB_BITS = 6;
+
+	/** Values are clamped to less than 2^MAX_BITS. */
+	private static final int MAX_BITS = 40;
+
+	private static final int SUB_COUNT = 1 << SUB_BITS;
+	private static final int HALF_COUNT = SUB_COUNT / 2;
+	private static final long MAX_VALUE = (1L << MAX_BITS) - 1;
+
+	private final AtomicLongArray counts; // the number of values in each bucket
+
+	/**
+	 * Constructs a new, empty histogram.
+	 */
+	public LatencyHistogram() {
+		counts = new AtomicLongArray(indexOf(MAX_VALUE) + 1);
+	}
+
+	/**
+	 * Records a latency.
+	 *
+	 * @param nanos
+	 *        the latency, in nanoseconds; negative values are recorded as 0
+	 */
+	public void record(long nanos) {
+		counts.incrementAndGet(indexOf(Math.max(0, Math.min(nanos, MAX_VALUE))));
+	}
+
+	/**
+	 * Empties this histogram. Values recorded concurrently may be lost or kept.
+	 */
+	public void reset() {
+		for (int i = 0; i < counts.length(); i++) {
+			counts.set(i, 0);
+		}
+	}
+
+	/**
+	 * Takes a snapshot of this histogram.
+	 *
+	 * @return a copy of the counters of this histogram
+	 */
+	public Snapshot snapshot() {
+		long[] copy = new long[counts.length()];
+		for (int i = 0; i < copy.length; i++) {
+			copy[i] = counts.get(i);
+		}
+		return new Snapshot(copy);
+	}
+
+	/** Returns the bucket of a value between 0 and MAX_VALUE. */
+	private static int indexOf(long value) {
+		if (value < SUB_COUNT) {
+			return (int) value;
+		}
+		int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+		int sub = (int) (value >>> shift);
+		return SUB_COUNT + (shift - 1) * HALF_COUNT + (sub - HALF_COUNT);
+	}
+
+	/** Returns the highest value that falls in the given bucket. */
+	private static long highestValueOf(int index) {
+		if (index < SUB_COUNT) {
+			return index;
+		}
+		int shift = (index - SUB_COUNT) / HALF_COUNT + 1;
+		long sub = (index - SUB_COUNT) % HALF_COUNT + HALF_COUNT;
+		return ((sub + 1) << shift) - 1;
+	}
+
+	/**
+	 * Represents the counters of a histogram at some point in time.
+	 */
+	public static class Snapshot {
+
+		private final long[] counts; // the number of values in each bucket
+		private final long total;    // the number of values
+
+		private Snapshot(long[] counts) {
+			this.counts = counts;
+			long sum = 0;
+			for (long count : counts) {
+				sum += count;
+			}
+			this.total = sum;
+		}
+
+		/**
+		 * Gets the number of recorded values.
+		 *
+		 * @return the number of values
+		 */
+		public long getCount() {
+			return total;
+		}
+
+		/**
+		 * Gets the value below which the given percentage of the values fall.
+		 *
+		 * @param percentile
+		 *        the percentile, between 0 and 100 (for example 99.9)
+		 * @return the value at the percentile, in nanoseconds, or 0 if there are no values
+		 * @throws IllegalArgumentException
+		 *         if percentile is not between 0 and 100
+		 */
+		public long getValueAtPercentile(double percentile) {
+			if (percentile < 0 || percentile > 100) {
+				throw new IllegalArgumentException("percentile must be between 0 and 100");
+			}
+			long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+			long seen = 0;
+			for (int i = 0; i < counts.length; i++) {
+				seen += counts[i];
+				if (seen >= rank) {
+					return highestValueOf(i);
+				}
+			}
+			return 0;
+		}
+
+		/**
+		 * Gets the largest recorded value, up to the precision of the buckets.
+		 *
+		 * @return the largest value, in nanoseconds, or 0 if there are no values
+		 */
+		public long getMax() {
+			for (int i = counts.length - 1; i >= 0; i--) {
+				if (counts[i] > 0) {
+					return highestValueOf(i);
+				}
+			}
+			return 0;
+		}
+
+		/**
+		 * Gets the mean of the recorded values, up to the precision of the buckets.
+		 *
+		 * @return the mean, in nanoseconds, or 0 if there are no values
+		 */
+		public double getMean() {
+			if (total == 0) {
+				return 0;
+			}
+			double sum = 0;
+			for (int i = 0; i < counts.length; i++) {
+				sum += (double) counts[i] * highestValueOf(i);
+			}
+			return sum / total;
+		}
+
+		/**
+		 * A textual representation of this snapshot: the count and the main percentiles.
+		 */
+		public String toString() {
+			return "count " + total + ", p50 " + getValueAtPercentile(50) + "ns, p99 "
+					+ getValueAtPercentile(99) + "ns, p99.9 " + getValueAtPercentile(99.9)
+					+ "ns, max " + getMax() + "ns";
+		}
+	}
+}
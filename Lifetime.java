@@ -0,0 +1,11 @@
+/**
+ * Represents the expected lifetime of a memory block, as a hint to
+ * MemorySpace.malloc. Blocks of different lifetimes are placed in different
+ * regions of a partitioned memory space, so that short-lived blocks do not
+ * leave holes between long-lived ones.
+ */
+public enum Lifetime {
+    SHORT,     // freed soon after it is allocated
+    LONG,      // freed much later than it is allocated
+    PERMANENT  // never freed
+}
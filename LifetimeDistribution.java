@@ -0,0 +1,9 @@
+/**
+ * Represents the order in which blocks are freed, for WorkloadGenerator.
+ */
+public enum LifetimeDistribution {
+    EXPONENTIAL,  // each block lives an exponentially distributed number of mallocs
+    PHASED,       // blocks are allocated up to the live target, then all freed in random order
+    LIFO,         // the most recently allocated block is freed first
+    FIFO          // the least recently allocated block is freed first
+}
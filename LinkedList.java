@@ -6,6 +6,7 @@ public class LinkedList {
 	private Node first; // pointer to the first element of this list
 	private Node last;  // pointer to the last element of this list
 	private int size;   // number of elements in this list
+	private long[] hops; // node hops per ListOperation, or null when not counting
 	
 	/**
 	 * Constructs a new list.
@@ -54,11 +55,7 @@ public class LinkedList {
             throw new IllegalArgumentException(
                     "index must be between 0 and size");
         }
-        Node current= first;
-        for(int i=0;i<index;i++){
-            current=current.next;
-        }
-        return current;
+        return nodeAt(index, ListOperation.GET_NODE);
 	}
 	
 	/**
@@ -107,17 +104,9 @@ public class LinkedList {
             size++;
             return;
         }
-        int count=0;
-        Node current=first;
-        Node previous=null;
-        while(count!=index){
-            previous=current;
-            current=current.next;
-            count++;
-        }
-        // count==index
+        Node previous=nodeAt(index - 1, ListOperation.ADD);
+        blockNode.next=previous.next;
         previous.next=blockNode;
-        blockNode.next=current;
         size++;
 
 	}
@@ -158,11 +147,7 @@ public class LinkedList {
             throw new IllegalArgumentException(
                     "index must be between 0 and size");
         }
-        Node current=first;
-        for(int i=0;i<index;i++){
-            current=current.next;
-        }
-        return current.block;
+        return nodeAt(index, ListOperation.GET_BLOCK).block;
 
 	}		
 
@@ -174,18 +159,7 @@ public class LinkedList {
 	 * @return the index of the block, or -1 if the block is not in this list
 	 */
 	public int indexOf(MemoryBlock block) {
-		Node current=first;
-        int count=0;
-        while((current!=null)){
-            if(current.block.equals(block)){
-                return count;
-            }
-            current=current.next;
-            count++;
-        }
-        // block was not found
-        return -1;
-
+		return find(block, ListOperation.INDEX_OF);
 	}
 
 	/**
@@ -211,10 +185,13 @@ public class LinkedList {
             return;
         }
         // its the last
+        int count=0;
         if(node==last){
             while (current.next != last) {
                 current = current.next;
+                count++;
             }
+            countHops(ListOperation.REMOVE_NODE, count);
             last=current;
             last.next=null;
             size--;
@@ -223,7 +200,9 @@ public class LinkedList {
         while(current!=node && current!=null){ // in the middle somewhere
             prev=current;
             current=current.next;
+            count++;
         } 
+        countHops(ListOperation.REMOVE_NODE, count);
         if(current==node){
             prev.next=current.next;
             size--;
@@ -234,6 +213,31 @@ public class LinkedList {
 
 	}
 
+	/**
+	 * Removes the given node from this list in O(1), without walking the list:
+	 * the node takes the memory block of the node that follows it, and that
+	 * node is unlinked instead. After the call, the given node holds the block
+	 * that followed the removed one, and the node that held it is no longer in
+	 * this list.
+	 * 
+	 * @param node
+	 *        a node of this list, other than the last one
+	 * @throws IllegalArgumentException
+	 *         if node is the last node of this list
+	 */
+	public void removeInPlace(Node node) {
+		Node next = node.next;
+		if (next == null) {
+			throw new IllegalArgumentException("the last node cannot be removed in place");
+		}
+		node.block = next.block;
+		node.next = next.next;
+		if (next == last) {
+			last = node;
+		}
+		size--;
+	}
+
 	/**
 	 * Removes from this list the node which is located at the given index.
 	 * 
@@ -245,6 +249,11 @@ public class LinkedList {
         if (index < 0 || index >= size) {
             throw new IllegalArgumentException("index must be between 0 and size");
         }
+        removeAt(index, ListOperation.REMOVE_INDEX);
+	}
+
+	/** Removes the node at the given valid index, counting the hops for the given operation. */
+	private void removeAt(int index, ListOperation op) {
         if (index == 0) { // Remove first node
             first = first.next;
             size--;
@@ -253,7 +262,7 @@ public class LinkedList {
             }
             return;
         }
-        Node prev = getNode(index - 1);
+        Node prev = nodeAt(index - 1, op);
         Node toRemove = prev.next;
         prev.next = toRemove.next;
         if (toRemove == last) {
@@ -276,13 +285,81 @@ public class LinkedList {
         if (size == 0) {
             throw new IllegalStateException("Cannot remove from an empty list");
         }
-        int index = this.indexOf(block);
-    if (index == -1) {
-        throw new IllegalArgumentException("index must be between 0 and size");
-    }
-    this.remove(index);
+        int index = find(block, ListOperation.REMOVE_BLOCK);
+        if (index == -1) {
+            throw new IllegalArgumentException("index must be between 0 and size");
+        }
+        removeAt(index, ListOperation.REMOVE_BLOCK);
+	}
 
-}	
+	/**
+	 * Starts or stops counting the node hops that the operations of this list
+	 * perform. Counting is off by default; starting it again resets the counts.
+	 * 
+	 * @param enabled
+	 *        true to count hops, false to stop counting
+	 */
+	public void setHopCounting(boolean enabled) {
+		hops = enabled ? new long[ListOperation.values().length] : null;
+	}
+
+	/**
+	 * Gets the number of node hops that the given operation performed, since
+	 * hop counting was started. The hops of an operation include the hops of
+	 * the operations it is built on: remove(block) counts the hops of finding
+	 * the block and of unlinking it.
+	 * 
+	 * @param op
+	 *        the operation
+	 * @return the number of hops, or 0 if hops are not counted
+	 */
+	public long getHops(ListOperation op) {
+		return hops == null ? 0 : hops[op.ordinal()];
+	}
+
+	/**
+	 * Gets the number of node hops that all the operations performed, since
+	 * hop counting was started.
+	 * 
+	 * @return the number of hops, or 0 if hops are not counted
+	 */
+	public long getTotalHops() {
+		long total = 0;
+		if (hops != null) {
+			for (long count : hops) {
+				total += count;
+			}
+		}
+		return total;
+	}
+
+	/** Returns the node at the given valid index, counting the hops for the given operation. */
+	private Node nodeAt(int index, ListOperation op) {
+		Node current = first;
+		for (int i = 0; i < index; i++) {
+			current = current.next;
+		}
+		countHops(op, index);
+		return current;
+	}
+
+	/** Returns the index of the given block, or -1, counting the hops for the given operation. */
+	private int find(MemoryBlock block, ListOperation op) {
+		Node current = first;
+		int count = 0;
+		while (current != null && !current.block.equals(block)) {
+			current = current.next;
+			count++;
+		}
+		countHops(op, count);
+		return current == null ? -1 : count;
+	}
+
+	private void countHops(ListOperation op, int count) {
+		if (hops != null) {
+			hops[op.ordinal()] += count;
+		}
+	}
 
 	/**
 	 * Returns an iterator over this list, starting with the first element.
@@ -295,14 +372,15 @@ public class LinkedList {
 	 * A textual representation of this list, for debugging.
 	 */
 	public String toString() {
-		//// Replace the following statement with your code
-// and builds the string incrementally
-	ListIterator itr = this.iterator();
-	String str = "";
-	while (itr.hasNext()) {
-	str += "(" + itr.current.block.baseAddress + " , " + itr.current.block.length + ") ";
-	itr.next();
-	}
-	return str;
+		// builds the string in a StringBuilder, since concatenating
+		// in a loop would copy the string once per node
+		StringBuilder str = new StringBuilder();
+		ListIterator itr = this.iterator();
+		while (itr.hasNext()) {
+			str.append('(').append(itr.current.block.baseAddress).append(" , ")
+					.append(itr.current.block.length).append(") ");
+			itr.next();
+		}
+		return str.toString();
 	}
 }
\ No newline at end of file
@@ -0,0 +1,13 @@
+/**
+ * Represents a LinkedList operation that walks the list, for counting the
+ * node hops each operation performs (see LinkedList.setHopCounting).
+ */
+public enum ListOperation {
+    GET_NODE,      // getNode(index)
+    GET_BLOCK,     // getBlock(index)
+    INDEX_OF,      // indexOf(block)
+    ADD,           // add(index, block), addFirst and addLast
+    REMOVE_NODE,   // remove(node)
+    REMOVE_INDEX,  // remove(index)
+    REMOVE_BLOCK   // remove(block)
+}
@@ -0,0 +1,262 @@
+import java.util.ArrayDeque;
+
+/**
+ * Represents a per-thread cache of fixed-length blocks of a memory space,
+ * organised in magazines, as in Bonwick's magazine allocator.
+ * <p>
+ * A magazine is a small stack of free blocks (rounds). Each thread holds two
+ * magazines: a loaded one, that malloc pops from and free pushes to, and the
+ * previous one, that is swapped in when the loaded one is empty (in malloc)
+ * or full (in free). Only when both are unusable does the thread go to the
+ * shared depot, and exchange a whole magazine: an empty one for a full one,
+ * or the other way around. When the depot has no full magazine, a new one is
+ * filled by malloc from the memory space, in one batch.
+ * <p>
+ * The fast path touches only thread-local data. The depot and the memory
+ * space are shared, and are accessed under their own locks; the lock of the
+ * memory space is its own monitor, so other users of the space should
+ * synchronize on it as well.
+ */
+public class MagazineCache {
+
+	/** A stack of free blocks. */
+	private static class Magazine {
+
+		final int[] rounds; // base addresses of free blocks
+		int count;          // the number of rounds in this magazine
+
+		Magazine(int capacity) {
+			rounds = new int[capacity];
+		}
+
+		boolean isEmpty() {
+			return count == 0;
+		}
+
+		boolean isFull() {
+			return count == rounds.length;
+		}
+	}
+
+	/** The two magazines of one thread. */
+	private static class ThreadCache {
+
+		Magazine loaded;
+		Magazine previous;
+	}
+
+	private final MemorySpace space;     // the memory space that blocks come from
+	private final int blockLength;       // the length of each block, in words
+	private final int magazineSize;      // the number of rounds per magazine
+
+	private final ArrayDeque<Magazine> fullMagazines;  // depot, guarded by itself
+	private final ArrayDeque<Magazine> emptyMagazines; // depot, guarded by fullMagazines
+
+	private final ThreadLocal<ThreadCache> caches;
+
+	/**
+	 * Constructs a new magazine cache.
+	 *
+	 * @param space
+	 *        the memory space that the blocks are allocated from
+	 * @param blockLength
+	 *        the length of each block, in words
+	 * @param magazineSize
+	 *        the number of blocks that each magazine holds
+	 * @throws IllegalArgumentException
+	 *         if space is null, or if blockLength or magazineSize is not positive
+	 */
+	public MagazineCache(MemorySpace space, int blockLength, int magazineSize) {
+		if (space == null) {
+			throw new IllegalArgumentException("space must not be null");
+		}
+		if (blockLength <= 0 || magazineSize <= 0) {
+			throw new IllegalArgumentException("blockLength and magazineSize must be positive");
+		}
+		this.space = space;
+		this.blockLength = blockLength;
+		this.magazineSize = magazineSize;
+		this.fullMagazines = new ArrayDeque<Magazine>();
+		this.emptyMagazines = new ArrayDeque<Magazine>();
+		this.caches = ThreadLocal.withInitial(() -> {
+			ThreadCache cache = new ThreadCache();
+			cache.loaded = new Magazine(magazineSize);
+			cache.previous = new Magazine(magazineSize);
+			return cache;
+		});
+	}
+
+	/**
+	 * Gets the length of the blocks of this cache.
+	 *
+	 * @return the block length, in words
+	 */
+	public int getBlockLength() {
+		return blockLength;
+	}
+
+	/**
+	 * Allocates one block.
+	 *
+	 * @return the base address of the allocated block, or -1 if unable to allocate
+	 */
+	public int malloc() {
+		ThreadCache cache = caches.get();
+		if (cache.loaded.isEmpty()) {
+			if (!cache.previous.isEmpty()) {
+				swap(cache);
+			} else {
+				Magazine full = takeFull();
+				if (full == null) {
+					return -1;
+				}
+				putEmpty(cache.previous);
+				cache.previous = cache.loaded;
+				cache.loaded = full;
+			}
+		}
+		Magazine loaded = cache.loaded;
+		return loaded.rounds[--loaded.count];
+	}
+
+	/**
+	 * Frees the block whose base address equals the given address. The block
+	 * must have been allocated by this cache, possibly by another thread.
+	 *
+	 * @param address
+	 *        the base address of the block to free
+	 */
+	public void free(int address) {
+		ThreadCache cache = caches.get();
+		if (cache.loaded.isFull()) {
+			if (!cache.previous.isFull()) {
+				swap(cache);
+			} else {
+				Magazine empty = takeEmpty();
+				putFull(cache.previous);
+				cache.previous = cache.loaded;
+				cache.loaded = empty;
+			}
+		}
+		Magazine loaded = cache.loaded;
+		loaded.rounds[loaded.count++] = address;
+	}
+
+	/**
+	 * Returns the blocks held by the calling thread to the depot. Should be
+	 * called by a thread before it stops using this cache.
+	 */
+	public void flush() {
+		ThreadCache cache = caches.get();
+		for (Magazine magazine : new Magazine[] { cache.loaded, cache.previous }) {
+			if (magazine.isEmpty()) {
+				continue;
+			}
+			if (magazine.isFull()) {
+				putFull(magazine);
+			} else {
+				synchronized (space) {
+					while (!magazine.isEmpty()) {
+						space.free(magazine.rounds[--magazine.count]);
+					}
+				}
+				putEmpty(magazine);
+			}
+		}
+		caches.remove();
+	}
+
+	/**
+	 * Frees the blocks of all the full magazines in the depot back to the
+	 * memory space.
+	 *
+	 * @return the number of blocks that were freed
+	 */
+	public int reap() {
+		int count = 0;
+		while (true) {
+			Magazine magazine = takeFullFromDepot();
+			if (magazine == null) {
+				return count;
+			}
+			synchronized (space) {
+				while (!magazine.isEmpty()) {
+					space.free(magazine.rounds[--magazine.count]);
+					count++;
+				}
+			}
+			putEmpty(magazine);
+		}
+	}
+
+	/**
+	 * Gets the number of full magazines in the depot.
+	 *
+	 * @return the number of full magazines in the depot
+	 */
+	public int getFullMagazineCount() {
+		synchronized (fullMagazines) {
+			return fullMagazines.size();
+		}
+	}
+
+	private static void swap(ThreadCache cache) {
+		Magazine tmp = cache.loaded;
+		cache.loaded = cache.previous;
+		cache.previous = tmp;
+	}
+
+	/**
+	 * Takes a full magazine from the depot, or fills a new one from the memory
+	 * space. Returns null if the memory space cannot allocate a single block.
+	 */
+	private Magazine takeFull() {
+		Magazine magazine = takeFullFromDepot();
+		if (magazine != null) {
+			return magazine;
+		}
+		magazine = takeEmpty();
+		synchronized (space) {
+			while (!magazine.isFull()) {
+				int address = space.malloc(blockLength);
+				if (address == -1) {
+					break;
+				}
+				magazine.rounds[magazine.count++] = address;
+			}
+		}
+		if (magazine.isEmpty()) {
+			putEmpty(magazine);
+			return null;
+		}
+		return magazine;
+	}
+
+	private Magazine takeFullFromDepot() {
+		synchronized (fullMagazines) {
+			return fullMagazines.pollFirst();
+		}
+	}
+
+	private Magazine takeEmpty() {
+		synchronized (fullMagazines) {
+			Magazine magazine = emptyMagazines.pollFirst();
+			if (magazine != null) {
+				return magazine;
+			}
+		}
+		return new Magazine(magazineSize);
+	}
+
+	private void putFull(Magazine magazine) {
+		synchronized (fullMagazines) {
+			fullMagazines.addFirst(magazine);
+		}
+	}
+
+	private void putEmpty(Magazine magazine) {
+		synchronized (fullMagazines) {
+			emptyMagazines.addFirst(magazine);
+		}
+	}
+}
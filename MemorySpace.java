@@ -1,3 +1,12 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
 /**
  * Represents a managed memory space. The memory space manages a list of
  * allocated
@@ -5,7 +14,7 @@
  * are
  * used, respectively, for creating new blocks and recycling existing blocks.
  */
-public class MemorySpace {
+public class MemorySpace implements Allocator {
 
 	// A list of the memory blocks that are presently allocated
 	private LinkedList allocatedList;
@@ -13,6 +22,94 @@ public class MemorySpace {
 	// A list of memory blocks that are presently free
 	private LinkedList freeList;
 
+	// Fast bins: fastBins[n] is a LIFO list of freed blocks of length n, that
+	// were not yet merged into the freeList. null when fast bins are disabled.
+	private LinkedList[] fastBins;
+
+	// The number of blocks presently held in the fast bins
+	private int fastBinCount;
+
+	// When the fast bins hold more blocks than this, they are consolidated
+	private int consolidateThreshold;
+
+	// The size of this memory space
+	private int maxSize;
+
+	// Blocks allocated by mallocHandle, by handle (null for unused handles)
+	private ArrayList<MemoryBlock> handles;
+
+	// Unused handles, that mallocHandle reuses
+	private ArrayDeque<Integer> freeHandles;
+
+	// The handle of each block allocated by mallocHandle. Only these blocks
+	// may be moved by compact; all the other blocks are pinned.
+	private IdentityHashMap<MemoryBlock, Integer> handleOf;
+
+	// The total length of the free blocks, in the freeList and the fast bins
+	private long freeWords;
+
+	// The number of free blocks of each length, in the freeList and the fast bins.
+	// Keeping it costs O(log n) per malloc, free and merge.
+	private TreeMap<Integer, Integer> freeLengths;
+
+	// The largest key of freeLengths, or 0, so that reading it is O(1)
+	private int largestFree;
+
+	// The total length of the allocated blocks
+	private long allocatedWords;
+
+	// Cumulative counts of mallocs, of mallocs that failed, and of frees
+	private long mallocCount;
+	private long failedMallocCount;
+	private long freeCount;
+
+	// The freeList nodes visited by first fit during the current malloc,
+	// and during all the mallocs so far
+	private int nodesScanned;
+	private long totalNodesScanned;
+
+	// Whether the hops of the list operations are counted, and the hops
+	// counted during mallocs, and the number of these mallocs (see setHopCounting)
+	private boolean hopCounting;
+	private long mallocHops;
+	private long hopMallocs;
+
+	// The recorder of the calls to malloc, free and defrag, or null, and
+	// whether a malloc or free is in progress (the defrags it makes are not recorded)
+	private AllocationTraceRecorder traceRecorder;
+	private boolean inOperation;
+
+	// Latency histograms of malloc, free and defrag; null when not recording
+	private LatencyHistogram mallocLatency;
+	private LatencyHistogram freeLatency;
+	private LatencyHistogram defragLatency;
+
+	// Automatic defragmentation (see setAutoDefrag); nodesPerStep is 0 when disabled
+	private double fragmentationThreshold;
+	private int freeBlockThreshold;
+	private int nodesPerStep;
+	private int freesSincePass;
+
+	// What malloc does when first fit fails
+	private DefragPolicy defragPolicy = DefragPolicy.NONE;
+
+	// The state of the incremental defragmentation pass, see defragStep:
+	// whether a pass is in progress, the free nodes by base address, whether
+	// they are all indexed, the node that is indexed or merged next, the
+	// nodes done in the current phase, and the length of the freeList when
+	// the pass started, which bounds both phases
+	private boolean stepping;
+	private HashMap<Integer, Node> stepIndex;
+	private boolean stepIndexed;
+	private Node stepNode;
+	private int stepCount;
+	private int stepLimit;
+
+	// The region of each Lifetime, by ordinal: [regionStart, regionEnd).
+	// null when this memory space is not partitioned.
+	private int[] regionStart;
+	private int[] regionEnd;
+
 	/**
 	 * Constructs a new managed memory space of a given maximal size.
 	 * 
@@ -26,7 +123,48 @@ public class MemorySpace {
 		// the entire memory. The base address of this single initial block is
 		// zero, and its length is the given memory size.
 		freeList = new LinkedList();
-		freeList.addLast(new MemoryBlock(0, maxSize));
+		init(maxSize);
+		addFree(new MemoryBlock(0, maxSize));
+	}
+
+	/**
+	 * Constructs a new managed memory space of a given maximal size, partitioned
+	 * into a region for each Lifetime: short-lived blocks are allocated at the
+	 * beginning of the space, then come the long-lived blocks, and the permanent
+	 * blocks are at the end. Blocks of different regions are never merged.
+	 * 
+	 * @param maxSize
+	 *                the size of the memory space to be managed
+	 * @param longSize
+	 *                the size of the region of long-lived blocks
+	 * @param permanentSize
+	 *                the size of the region of permanent blocks
+	 * @throws IllegalArgumentException
+	 *         if a region size is negative, or the regions do not fit in maxSize
+	 */
+	public MemorySpace(int maxSize, int longSize, int permanentSize) {
+		if (longSize < 0 || permanentSize < 0 || longSize + permanentSize > maxSize) {
+			throw new IllegalArgumentException("region sizes must be between 0 and maxSize");
+		}
+		allocatedList = new LinkedList();
+		freeList = new LinkedList();
+		init(maxSize);
+		int shortSize = maxSize - longSize - permanentSize;
+		regionStart = new int[] { 0, shortSize, shortSize + longSize };
+		regionEnd = new int[] { shortSize, shortSize + longSize, maxSize };
+		for (int i = 0; i < regionStart.length; i++) {
+			if (regionEnd[i] > regionStart[i]) {
+				addFree(new MemoryBlock(regionStart[i], regionEnd[i] - regionStart[i]));
+			}
+		}
+	}
+
+	private void init(int maxSize) {
+		this.maxSize = maxSize;
+		freeLengths = new TreeMap<Integer, Integer>();
+		handles = new ArrayList<MemoryBlock>();
+		freeHandles = new ArrayDeque<Integer>();
+		handleOf = new IdentityHashMap<MemoryBlock, Integer>();
 	}
 
 	/**
@@ -68,56 +206,234 @@ public class MemorySpace {
 	 * @return the base address of the allocated block, or -1 if unable to allocate
 	 */
 	public int malloc(int length) {
+		return mallocIn(length, 0, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Allocates a memory block of a requested length (in words), in the region
+	 * of the given lifetime. If this memory space is not partitioned, or the
+	 * region has no room for the block, the block is allocated as by malloc(length).
+	 * 
+	 * @param length
+	 *               the length (in words) of the memory block that has to be
+	 *               allocated
+	 * @param lifetime
+	 *               the expected lifetime of the block
+	 * @return the base address of the allocated block, or -1 if unable to allocate
+	 */
+	public int malloc(int length, Lifetime lifetime) {
+		if (regionStart == null) {
+			return malloc(length);
+		}
+		int region = lifetime.ordinal();
+		return mallocIn(length, regionStart[region], regionEnd[region]);
+	}
+
+	/**
+	 * Allocates a block of the given length within [start, end), or anywhere
+	 * if there is no room there, and records the statistics, the latency and
+	 * the events of the malloc.
+	 */
+	private int mallocIn(int length, int start, int end) {
+		AllocatorEvents.Malloc event = new AllocatorEvents.Malloc();
+		event.begin();
+		long begin = mallocLatency == null ? 0 : System.nanoTime();
+		nodesScanned = 0;
+		long hopsBefore = hopCounting ? listHops() : 0;
+		int address;
+		inOperation = true;
+		try {
+			address = allocate(length, start, end);
+			if (address == -1 && (start != 0 || end != Integer.MAX_VALUE)) {
+				address = allocate(length, 0, Integer.MAX_VALUE);
+			}
+		} finally {
+			inOperation = false;
+		}
+		if (traceRecorder != null) {
+			traceRecorder.recordMalloc(length, address);
+		}
+		mallocCount++;
+		totalNodesScanned += nodesScanned;
+		if (hopCounting) {
+			mallocHops += listHops() - hopsBefore + nodesScanned;
+			hopMallocs++;
+		}
+		if (mallocLatency != null) {
+			mallocLatency.record(System.nanoTime() - begin);
+		}
+		if (address == -1) {
+			failedMallocCount++;
+			AllocatorEvents.MallocFailed failed = new AllocatorEvents.MallocFailed();
+			if (failed.shouldCommit()) {
+				failed.requestedLength = length;
+				failed.freeWords = freeWords;
+				failed.largestFreeBlock = getLargestFreeBlock();
+				failed.freeBlocks = getFreeBlockCount();
+				failed.commit();
+			}
+			return address;
+		}
+		event.end();
+		if (event.shouldCommit()) {
+			event.requestedLength = length;
+			event.address = address;
+			event.nodesScanned = nodesScanned;
+			event.commit();
+		}
+		return address;
+	}
+
+	/**
+	 * Allocates a block of the given length within [start, end): pops a fast
+	 * bin if it holds a block in that range, and otherwise uses first fit,
+	 * consolidating the fast bins and retrying if first fit fails.
+	 */
+	private int allocate(int length, int start, int end) {
+		if (fastBins != null && length > 0 && length < fastBins.length && fastBins[length].getSize() > 0
+				&& fastBins[length].getFirst().block.baseAddress >= start
+				&& fastBins[length].getFirst().block.baseAddress < end) {
+			// pops the most recently freed block of this exact length
+			MemoryBlock block = fastBins[length].getFirst().block;
+			fastBins[length].remove(0);
+			fastBinCount--;
+			uncountFree(length);
+			allocatedList.addLast(block);
+			allocatedWords += length;
+			return block.baseAddress;
+		}
+		int address = firstFit(length, start, end);
+		if (address == -1 && fastBinCount > 0) {
+			// the blocks in the fast bins may merge into a large enough block
+			defrag();
+			address = firstFit(length, start, end);
+		}
+		if (address == -1 && defragPolicy == DefragPolicy.FULL) {
+			defrag();
+			address = firstFit(length, start, end);
+		} else if (address == -1 && defragPolicy == DefragPolicy.TARGETED
+				&& coalesceFor(length, start, end)) {
+			address = firstFit(length, start, end);
+		}
+		return address;
+	}
+
+	/**
+	 * Sets what malloc does when it fails to find a free block that is long
+	 * enough: nothing (the default), a targeted coalesce, or a full defrag.
+	 * 
+	 * @param policy
+	 *               the defragmentation policy of malloc
+	 * @throws IllegalArgumentException
+	 *         if policy is null
+	 */
+	public void setDefragPolicy(DefragPolicy policy) {
+		if (policy == null) {
+			throw new IllegalArgumentException("policy must not be null");
+		}
+		defragPolicy = policy;
+	}
+
+	/**
+	 * Merges free blocks within [start, end) with the free blocks that follow
+	 * them in memory, one candidate at a time, and stops as soon as a block of
+	 * at least the given length is formed.
+	 * Returns true if such a block was formed.
+	 */
+	private boolean coalesceFor(int length, int start, int end) {
+		Node current = freeList.getFirst();
+		while (current != null) {
+			MemoryBlock block = current.block;
+			if (block.baseAddress >= start && block.baseAddress < end) {
+				Node neighbour = findFreeNode(block.baseAddress + block.length);
+				while (block.length < length && neighbour != null && neighbour != current
+						&& !isRegionStart(neighbour.block.baseAddress)) {
+					mergeFree(block, neighbour);
+					neighbour = findFreeNode(block.baseAddress + block.length);
+				}
+				if (block.length >= length) {
+					return true;
+				}
+			}
+			current = current.next;
+		}
+		return false;
+	}
+
+	/**
+	 * Allocates the first block of the freeList within [start, end) whose length
+	 * is at least the given length, as described in malloc.
+	 */
+	private int firstFit(int length, int start, int end) {
 		ListIterator iteratorNew = freeList.iterator();
 		while (iteratorNew.hasNext()) {
 			MemoryBlock mBlock = iteratorNew.next();
+			nodesScanned++;
+			if (mBlock.baseAddress < start || mBlock.baseAddress >= end) {
+				continue;
+			}
 			if (length == mBlock.length) {
+				stepPast(mBlock);
 				freeList.remove(mBlock);
+				uncountFree(mBlock.length);
 				allocatedList.addLast(mBlock);
+				allocatedWords += length;
 				return mBlock.baseAddress;
 			}
 			if (length <= mBlock.length) {
 				allocatedList.addLast(new MemoryBlock(mBlock.baseAddress, length));
+				stepPast(mBlock);
 				freeList.remove(mBlock);
-				freeList.addLast(new MemoryBlock(mBlock.baseAddress + length,
-						mBlock.length - length));
+				uncountFree(mBlock.length);
+				addFree(new MemoryBlock(mBlock.baseAddress + length, mBlock.length - length));
+				allocatedWords += length;
 				return mBlock.baseAddress;
 			}
 		}
-		/* */
-		MemoryBlock tempBlock = null;
-		ListIterator iteratorr = freeList.iterator();
-		while (iteratorr.hasNext()) {
-			MemoryBlock tempIterator = iteratorr.next();
-			if (tempIterator.length >= length) {
-				tempBlock = tempIterator;
-				break;
-			}
-		}
-
-		if (tempBlock == null) {
-			return -1;
-		}
-		MemoryBlock insertBlock = new MemoryBlock(tempBlock.baseAddress, length);
-		allocatedList.addLast(insertBlock);
-		if (length == tempBlock.length) {
-			freeList.remove(insertBlock);
-			return tempBlock.baseAddress;
-		}
-		tempBlock.baseAddress += length;
-		tempBlock.length -= length;
-		return insertBlock.baseAddress;
+		return -1;
 	}
 
 	/**
 	 * Frees the memory block whose base address equals the given address.
 	 * This implementation deletes the block whose base address equals the given
 	 * address from the allocatedList, and adds it at the end of the free list.
+	 * When fast bins are enabled, a small block is added to the fast bin of its
+	 * length instead, and is merged into the free list only later, by defrag.
+	 * Freeing the block of a handle releases the handle too, as freeHandle does.
 	 * 
 	 * @param baseAddress
 	 *                    the starting address of the block to freeList
 	 */
 	public void free(int address) {
+		AllocatorEvents.Free event = new AllocatorEvents.Free();
+		event.begin();
+		long start = freeLatency == null ? 0 : System.nanoTime();
+		int length = 0;
+		if (traceRecorder != null) {
+			traceRecorder.recordFree(address);
+		}
+		inOperation = true;
+		try {
+			length = release(address);
+		} finally {
+			inOperation = false;
+			if (freeLatency != null) {
+				freeLatency.record(System.nanoTime() - start);
+			}
+		}
+		event.end();
+		if (event.shouldCommit()) {
+			event.address = address;
+			event.length = length;
+			event.commit();
+		}
+	}
+
+	/**
+	 * Frees the memory block whose base address equals the given address, as
+	 * described in free. Returns the length of the block, or 0 if there is none.
+	 */
+	private int release(int address) {
 		if (allocatedList.getSize() == 0) {
 			throw new IllegalArgumentException("index must be between 0 and size");
 		}
@@ -126,10 +442,212 @@ public class MemorySpace {
 			MemoryBlock tMemoryBlock = iterator.next();
 			if (address == tMemoryBlock.baseAddress) {
 				allocatedList.remove(tMemoryBlock);
-				freeList.addLast(tMemoryBlock);
-				return;
+				allocatedWords -= tMemoryBlock.length;
+				freeCount++;
+				Integer handle = handleOf.remove(tMemoryBlock);
+				if (handle != null) {
+					// a handle block freed by address: its handle is released too
+					handles.set(handle, null);
+					freeHandles.push(handle);
+				}
+				if (fastBins != null && tMemoryBlock.length > 0 && tMemoryBlock.length < fastBins.length) {
+					// small blocks are kept unmerged, for fast reuse
+					fastBins[tMemoryBlock.length].addFirst(tMemoryBlock);
+					fastBinCount++;
+					countFree(tMemoryBlock.length);
+					if (fastBinCount > consolidateThreshold) {
+						defrag();
+					}
+					return tMemoryBlock.length;
+				}
+				addFree(tMemoryBlock);
+				maybeDefrag();
+				return tMemoryBlock.length;
 			}
 		}
+		return 0;
+	}
+
+	/**
+	 * Allocates a movable memory block of a requested length (in words), as
+	 * malloc does, and returns a handle to it. The address of the block may
+	 * change when compact is called, so it should be looked up with getAddress
+	 * every time it is used.
+	 * 
+	 * @param length
+	 *               the length (in words) of the memory block that has to be
+	 *               allocated
+	 * @return a handle to the allocated block, or -1 if unable to allocate
+	 */
+	public int mallocHandle(int length) {
+		if (malloc(length) == -1) {
+			return -1;
+		}
+		// every malloc appends the allocated block to the allocatedList
+		MemoryBlock block = allocatedList.getLast().block;
+		int handle;
+		if (freeHandles.isEmpty()) {
+			handle = handles.size();
+			handles.add(block);
+		} else {
+			handle = freeHandles.pop();
+			handles.set(handle, block);
+		}
+		handleOf.put(block, handle);
+		return handle;
+	}
+
+	/**
+	 * Gets the present base address of the block of the given handle.
+	 * 
+	 * @param handle
+	 *               a handle returned by mallocHandle
+	 * @return the base address of the block
+	 * @throws IllegalArgumentException
+	 *         if the handle is not the handle of an allocated block
+	 */
+	public int getAddress(int handle) {
+		return handleBlock(handle).baseAddress;
+	}
+
+	/**
+	 * Frees the block of the given handle. The handle may be reused afterwards.
+	 * 
+	 * @param handle
+	 *               a handle returned by mallocHandle
+	 * @throws IllegalArgumentException
+	 *         if the handle is not the handle of an allocated block
+	 */
+	public void freeHandle(int handle) {
+		free(handleBlock(handle).baseAddress);
+	}
+
+	private MemoryBlock handleBlock(int handle) {
+		if (handle < 0 || handle >= handles.size() || handles.get(handle) == null) {
+			throw new IllegalArgumentException("handle is not the handle of an allocated block");
+		}
+		return handles.get(handle);
+	}
+
+	/**
+	 * Compacts this memory space: slides every movable block (a block that was
+	 * allocated by mallocHandle) down to the lowest free address before it, and
+	 * rebuilds the freeList from the holes that are left. Blocks allocated by
+	 * malloc are pinned, and never move. Blocks never move across Lifetime
+	 * regions. If all the blocks are movable, each region ends up with one
+	 * free block, at its end.
+	 * <p>
+	 * Only the addresses of the blocks change: moving the contents of the
+	 * blocks, if any, is up to the caller, using the old and new addresses.
+	 * 
+	 * @return the statistics of this compaction
+	 */
+	public CompactionResult compact() {
+		long startTime = System.nanoTime();
+		// the fast bins are part of the holes, from which the freeList is rebuilt
+		flushFastBins();
+		MemoryBlock[] blocks = new MemoryBlock[allocatedList.getSize()];
+		ListIterator iterator = allocatedList.iterator();
+		for (int i = 0; i < blocks.length; i++) {
+			blocks[i] = iterator.next();
+		}
+		Arrays.sort(blocks, (a, b) -> Integer.compare(a.baseAddress, b.baseAddress));
+		int[] boundaries = regionStart == null ? new int[0]
+				: Arrays.copyOfRange(regionStart, 1, regionStart.length);
+		LinkedList compacted = new LinkedList();
+		long wordsMoved = 0;
+		int blocksMoved = 0;
+		int cursor = 0;
+		int boundary = 0;
+		// the longest hole before compaction, which is the longest free block
+		// that defrag would make, and the end of the previous block before it moved
+		int largestBefore = 0;
+		int previousEnd = 0;
+		for (MemoryBlock block : blocks) {
+			while (boundary < boundaries.length && block.baseAddress >= boundaries[boundary]) {
+				largestBefore = Math.max(largestBefore, boundaries[boundary] - previousEnd);
+				previousEnd = boundaries[boundary];
+				cursor = addHole(compacted, cursor, boundaries[boundary++]);
+			}
+			largestBefore = Math.max(largestBefore, block.baseAddress - previousEnd);
+			previousEnd = block.baseAddress + block.length;
+			if (block.baseAddress > cursor && handleOf.containsKey(block)) {
+				block.baseAddress = cursor;
+				wordsMoved += block.length;
+				blocksMoved++;
+			}
+			cursor = addHole(compacted, cursor, block.baseAddress) + block.length;
+		}
+		while (boundary < boundaries.length) {
+			largestBefore = Math.max(largestBefore, boundaries[boundary] - previousEnd);
+			previousEnd = boundaries[boundary];
+			cursor = addHole(compacted, cursor, boundaries[boundary++]);
+		}
+		largestBefore = Math.max(largestBefore, maxSize - previousEnd);
+		addHole(compacted, cursor, maxSize);
+		compacted.setHopCounting(hopCounting);
+		freeList = compacted;
+		recountFree();
+		// a pass in progress was over the old freeList
+		endPass();
+		return new CompactionResult(largestBefore, getLargestFreeBlock(), blocksMoved,
+				wordsMoved, System.nanoTime() - startTime);
+	}
+
+	/** Adds the hole [start, end) to the given list, if it is not empty, and returns end. */
+	private static int addHole(LinkedList list, int start, int end) {
+		if (end > start) {
+			list.addLast(new MemoryBlock(start, end - start));
+		}
+		return end;
+	}
+
+	/**
+	 * Allocates the block of the given length that starts at the given address.
+	 * The block must lie within a single free block, which is split around it:
+	 * the part before the block stays in place in the freeList, and the part
+	 * after it is added at the beginning of the freeList, so that claiming
+	 * blocks in increasing address order finds each one at the front.
+	 * 
+	 * @param baseAddress
+	 *        the base address of the block to allocate
+	 * @param length
+	 *        the length (in words) of the block to allocate
+	 * @return true if the block was allocated, false if it is not entirely free
+	 */
+	boolean claim(int baseAddress, int length) {
+		Node node = findFreeNodeContaining(baseAddress, length);
+		if (node == null && fastBinCount > 0) {
+			defrag();
+			node = findFreeNodeContaining(baseAddress, length);
+		}
+		if (node == null) {
+			return false;
+		}
+		MemoryBlock free = node.block;
+		uncountFree(free.length);
+		int end = free.baseAddress + free.length;
+		int after = end - (baseAddress + length);
+		if (free.baseAddress == baseAddress) {
+			if (after == 0) {
+				stepPast(free);
+				freeList.remove(node);
+			} else {
+				free.baseAddress = baseAddress + length;
+				free.length = after;
+				countFree(after);
+			}
+		} else {
+			free.length = baseAddress - free.baseAddress;
+			countFree(free.length);
+			if (after > 0) {
+				freeList.addFirst(new MemoryBlock(baseAddress + length, after));
+				countFree(after);
+			}
+		}
+		allocatedList.addLast(new MemoryBlock(baseAddress, length));
+		allocatedWords += length;
+		return true;
 	}
 
 	/**
@@ -138,29 +656,702 @@ public class MemorySpace {
 	 * for debugging purposes.
 	 */
 	public String toString() {
-		return freeList.toString() + "\n" + allocatedList.toString();
+		StringBuilder str = new StringBuilder(freeList.toString());
+		if (fastBins != null) {
+			for (int i = 0; i < fastBins.length; i++) {
+				str.append(fastBins[i].toString());
+			}
+		}
+		return str.append('\n').append(allocatedList.toString()).toString();
 	}
 
 	/**
-	 * Performs defragmantation of this memory space.
+	 * Enables fast bins for blocks shorter than the given length, or disables
+	 * them if the given length is 0 or 1.
+	 * <p>
+	 * A freed block that is shorter than maxLength is pushed onto the fast bin
+	 * of its length, without merging it with its neighbours, and the next malloc
+	 * of the same length pops it back. The fast bins are consolidated into the
+	 * free list (by defrag) when a malloc cannot be satisfied, or when they
+	 * hold more than consolidateThreshold blocks.
+	 *
+	 * @param maxLength
+	 *        blocks shorter than this length (but not empty) are kept in fast bins
+	 * @param consolidateThreshold
+	 *        the number of blocks the fast bins may hold before consolidation
+	 * @throws IllegalArgumentException
+	 *         if maxLength or consolidateThreshold is negative
+	 */
+	public void setFastBins(int maxLength, int consolidateThreshold) {
+		if (maxLength < 0 || consolidateThreshold < 0) {
+			throw new IllegalArgumentException("maxLength and consolidateThreshold must not be negative");
+		}
+		if (fastBins != null) {
+			defrag();
+		}
+		if (maxLength <= 1) {
+			fastBins = null;
+			return;
+		}
+		fastBins = new LinkedList[maxLength];
+		for (int i = 0; i < maxLength; i++) {
+			fastBins[i] = new LinkedList();
+		}
+		this.consolidateThreshold = consolidateThreshold;
+	}
+
+	/**
+	 * Performs defragmantation of this memory space: every free block is merged
+	 * with the free blocks that directly follow it in memory, and the blocks held
+	 * in the fast bins are moved to the free list first.
 	 * Normally, called by malloc, when it fails to find a memory block of the
 	 * requested size.
-	 * In this implementation Malloc does not call defrag.
+	 * In this implementation Malloc calls defrag only when fast bins are enabled,
+	 * or when the defragmentation policy (see setDefragPolicy) is FULL.
 	 */
 	public void defrag() {
-		ListIterator mainIterator = freeList.iterator();
-		ListIterator secondIterator = freeList.iterator();
-		while (mainIterator.hasNext()) {
-			MemoryBlock tMemoryBlock = mainIterator.next();
-			int baseSearch = tMemoryBlock.baseAddress + tMemoryBlock.length;
-			while (secondIterator.hasNext()) {
-				MemoryBlock tMemoryBlock2 = secondIterator.next();
-				if (baseSearch == tMemoryBlock2.baseAddress) {
-					tMemoryBlock.length += tMemoryBlock2.length;
-					freeList.remove(tMemoryBlock2);
-					defrag();
+		AllocatorEvents.Defrag event = new AllocatorEvents.Defrag();
+		event.begin();
+		long start = defragLatency == null ? 0 : System.nanoTime();
+		int blocks = getFreeBlockCount();
+		if (traceRecorder != null && !inOperation) {
+			traceRecorder.recordDefrag();
+		}
+		flushFastBins();
+		Node current = freeList.getFirst();
+		while (current != null) {
+			MemoryBlock block = current.block;
+			Node neighbour = findFreeNode(block.baseAddress + block.length);
+			if (neighbour != null && neighbour != current && !isRegionStart(neighbour.block.baseAddress)) {
+				// merges the neighbour, and looks for the next one
+				mergeFree(block, neighbour);
+			} else {
+				current = current.next;
+			}
+		}
+		if (defragLatency != null) {
+			defragLatency.record(System.nanoTime() - start);
+		}
+		event.end();
+		if (event.shouldCommit()) {
+			event.blocksMerged = blocks - freeList.getSize();
+			event.freeBlocks = freeList.getSize();
+			event.commit();
+		}
+	}
+
+	/**
+	 * Starts or stops recording the latencies of malloc, free and defrag in
+	 * histograms. Recording costs two calls to System.nanoTime per operation,
+	 * and is off by default. Starting it again empties the histograms.
+	 * 
+	 * @param enabled
+	 *        true to record latencies, false to stop recording
+	 */
+	public void setLatencyRecording(boolean enabled) {
+		mallocLatency = enabled ? new LatencyHistogram() : null;
+		freeLatency = enabled ? new LatencyHistogram() : null;
+		defragLatency = enabled ? new LatencyHistogram() : null;
+	}
+
+	/**
+	 * Gets the histogram of the latencies of malloc, including the defragmentation
+	 * that malloc may do. Its snapshots may be read by any thread.
+	 * 
+	 * @return the malloc latencies, or null if latencies are not recorded
+	 */
+	public LatencyHistogram getMallocLatency() {
+		return mallocLatency;
+	}
+
+	/**
+	 * Gets the histogram of the latencies of free.
+	 * 
+	 * @return the free latencies, or null if latencies are not recorded
+	 */
+	public LatencyHistogram getFreeLatency() {
+		return freeLatency;
+	}
+
+	/**
+	 * Gets the histogram of the latencies of defrag, including the calls that
+	 * malloc and free make to it.
+	 * 
+	 * @return the defrag latencies, or null if latencies are not recorded
+	 */
+	public LatencyHistogram getDefragLatency() {
+		return defragLatency;
+	}
+
+	/**
+	 * Starts or stops recording the calls to malloc, free and defrag in a
+	 * trace. The defrags that malloc and free make are not recorded, since
+	 * replaying the malloc or free makes them again.
+	 * 
+	 * @param recorder
+	 *        the recorder of the calls, or null to stop recording
+	 */
+	public void setTraceRecorder(AllocationTraceRecorder recorder) {
+		traceRecorder = recorder;
+	}
+
+	/**
+	 * Checks if the given address is the start of a Lifetime region, other than
+	 * the first one. Free blocks are never merged across such an address.
+	 */
+	private boolean isRegionStart(int address) {
+		if (regionStart == null) {
+			return false;
+		}
+		for (int i = 1; i < regionStart.length; i++) {
+			if (regionStart[i] == address) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the node of the free block that contains the given range, or null
+	 * if there is no such block.
+	 */
+	private Node findFreeNodeContaining(int baseAddress, int length) {
+		Node current = freeList.getFirst();
+		while (current != null) {
+			MemoryBlock block = current.block;
+			if (block.baseAddress <= baseAddress
+					&& baseAddress + length <= block.baseAddress + block.length) {
+				return current;
+			}
+			current = current.next;
+		}
+		return null;
+	}
+
+	/**
+	 * Performs a bounded amount of defragmentation work, and returns. Successive
+	 * calls make up one defragmentation pass, with the same result as defrag;
+	 * malloc and free may be called between them, and the pass resumes where
+	 * it stopped. A pass indexes the free blocks by base address, and then
+	 * merges each block with the blocks that follow it in memory, found in the
+	 * index. Freed blocks are indexed as they enter the freeList, but blocks
+	 * that enter it during the pass may be left for the next pass: both
+	 * phases are bounded by the length of the freeList when the pass started,
+	 * so a pass ends even under steady traffic.
+	 * <p>
+	 * A call visits at most maxNodes nodes. A merged block is unlinked in
+	 * place, in O(1), unless it is the last node; unlinking the last node
+	 * walks the freeList, and is counted as visiting all of it.
+	 * 
+	 * @param maxNodes
+	 *        the maximal number of freeList nodes to visit, or 0 for no limit
+	 * @param maxNanos
+	 *        the maximal time to spend, in nanoseconds, or 0 for no limit
+	 * @return true if this call completed a defragmentation pass, false if the
+	 *         pass should be continued by a later call
+	 * @throws IllegalArgumentException
+	 *         if a limit is negative
+	 */
+	public boolean defragStep(int maxNodes, long maxNanos) {
+		if (maxNodes < 0 || maxNanos < 0) {
+			throw new IllegalArgumentException("limits must not be negative");
+		}
+		long deadline = System.nanoTime() + maxNanos;
+		int visited = 0;
+		if (!stepping) {
+			// starts a new pass
+			flushFastBins();
+			stepping = true;
+			stepIndex = new HashMap<Integer, Node>();
+			stepIndexed = false;
+			stepNode = freeList.getFirst();
+			stepCount = 0;
+			stepLimit = freeList.getSize();
+		}
+		while (true) {
+			if (stepNode == null || stepCount >= stepLimit) {
+				if (stepIndexed) {
+					break;
+				}
+				// the index is complete: the merge phase starts over
+				stepIndexed = true;
+				stepNode = freeList.getFirst();
+				stepCount = 0;
+				continue;
+			}
+			if ((maxNodes > 0 && visited >= maxNodes)
+					|| (maxNanos > 0 && (visited & 63) == 0 && System.nanoTime() - deadline > 0)) {
+				return false;
+			}
+			visited++;
+			MemoryBlock block = stepNode.block;
+			if (!stepIndexed) {
+				stepIndex.put(block.baseAddress, stepNode);
+			} else {
+				int end = block.baseAddress + block.length;
+				Node neighbour = stepIndex.get(end);
+				// a block trimmed by claim is no longer at its indexed address
+				if (neighbour != null && neighbour != stepNode && neighbour.block.baseAddress == end
+						&& !isRegionStart(end)) {
+					visited += mergeIndexed(block, neighbour);
+					// the grown block may have another neighbour
+					continue;
+				}
+			}
+			stepNode = stepNode.next;
+			stepCount++;
+		}
+		endPass();
+		return true;
+	}
+
+	/** Ends the incremental defragmentation pass in progress, if any. */
+	private void endPass() {
+		stepping = false;
+		stepIndex = null;
+		stepNode = null;
+	}
+
+	/**
+	 * Merges the free block of the given node into the given free block, for
+	 * defragStep, and returns the number of nodes that unlinking it visited.
+	 * The node is unlinked in place, so it takes the block of the next node,
+	 * and the references of the pass to that node are moved to it.
+	 */
+	private int mergeIndexed(MemoryBlock block, Node neighbour) {
+		growFree(block, neighbour.block);
+		stepIndex.remove(neighbour.block.baseAddress);
+		Node next = neighbour.next;
+		if (next == null) {
+			int size = freeList.getSize();
+			freeList.remove(neighbour);
+			return size;
+		}
+		freeList.removeInPlace(neighbour);
+		if (stepIndex.get(neighbour.block.baseAddress) == next) {
+			stepIndex.put(neighbour.block.baseAddress, neighbour);
+		}
+		if (stepNode == next) {
+			stepNode = neighbour;
+		}
+		return 0;
+	}
+
+	/**
+	 * Moves the incremental defragmentation pass off a block that is about to
+	 * be removed from the freeList: drops it from the index, and moves the
+	 * saved node to the node that follows it. This keeps the state of the pass
+	 * valid in O(1), whatever malloc and free do between two steps.
+	 */
+	private void stepPast(MemoryBlock block) {
+		if (!stepping) {
+			return;
+		}
+		Node indexed = stepIndex.get(block.baseAddress);
+		if (indexed != null && indexed.block == block) {
+			stepIndex.remove(block.baseAddress);
+		}
+		if (stepNode != null && stepNode.block == block) {
+			// not counted: only visits bound a phase, so traffic cannot end it early
+			stepNode = stepNode.next;
+		}
+	}
+
+	/**
+	 * Performs defragmantation of this memory space in parallel, in the common
+	 * fork-join pool. See parallelDefrag(ForkJoinPool).
+	 */
+	public void parallelDefrag() {
+		parallelDefrag(ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Performs defragmantation of this memory space in parallel, with the same
+	 * merges as defrag. The free blocks are sorted by address, and the sorted
+	 * array is split into address ranges: the blocks of each range are merged
+	 * by a separate task, and the blocks at the seams between two ranges are
+	 * merged when the results of the two tasks are joined. Afterwards the
+	 * freeList is in increasing address order.
+	 * This is worthwhile for very long free lists, for which defrag, being
+	 * quadratic, is too slow.
+	 * 
+	 * @param pool
+	 *        the fork-join pool that runs the tasks
+	 */
+	public void parallelDefrag(ForkJoinPool pool) {
+		flushFastBins();
+		MemoryBlock[] blocks = new MemoryBlock[freeList.getSize()];
+		ListIterator iterator = freeList.iterator();
+		for (int i = 0; i < blocks.length; i++) {
+			blocks[i] = iterator.next();
+		}
+		Arrays.parallelSort(blocks, (a, b) -> Integer.compare(a.baseAddress, b.baseAddress));
+		int rangeLength = Math.max(1024, blocks.length / (4 * pool.getParallelism()) + 1);
+		int count = pool.invoke(new CoalesceTask(blocks, 0, blocks.length, rangeLength));
+		LinkedList merged = new LinkedList();
+		for (int i = 0; i < count; i++) {
+			merged.addLast(blocks[i]);
+		}
+		merged.setHopCounting(hopCounting);
+		freeList = merged;
+		recountFree();
+		// a pass in progress was over the old freeList
+		endPass();
+	}
+
+	/**
+	 * A task that merges the adjacent blocks of a range of an array of free
+	 * blocks, sorted by address. The merged blocks are written to the beginning
+	 * of the range, and their number is returned.
+	 */
+	@SuppressWarnings("serial")
+	private class CoalesceTask extends RecursiveTask<Integer> {
+
+		private final MemoryBlock[] blocks; // the sorted free blocks
+		private final int start;            // the first index of the range
+		private final int end;              // the index after the range
+		private final int rangeLength;      // ranges up to this length are not split
+
+		CoalesceTask(MemoryBlock[] blocks, int start, int end, int rangeLength) {
+			this.blocks = blocks;
+			this.start = start;
+			this.end = end;
+			this.rangeLength = rangeLength;
+		}
+
+		protected Integer compute() {
+			if (end - start <= rangeLength) {
+				return coalesce(start - 1, start, end);
+			}
+			int middle = (start + end) >>> 1;
+			CoalesceTask left = new CoalesceTask(blocks, start, middle, rangeLength);
+			CoalesceTask right = new CoalesceTask(blocks, middle, end, rangeLength);
+			left.fork();
+			int rightCount = right.compute();
+			int leftCount = left.join();
+			// fixes the seam, and moves the right results next to the left ones
+			return coalesce(start + leftCount - 1, middle, middle + rightCount);
+		}
+
+		/**
+		 * Appends blocks[from .. to) to the merged blocks of this range, that end
+		 * at blocks[last] (none if last is before the range), and returns the
+		 * number of merged blocks.
+		 */
+		private int coalesce(int last, int from, int to) {
+			for (int i = from; i < to; i++) {
+				MemoryBlock block = blocks[i];
+				if (last >= start && blocks[last].baseAddress + blocks[last].length == block.baseAddress
+						&& !isRegionStart(block.baseAddress)) {
+					blocks[last].length += block.length;
+				} else {
+					blocks[++last] = block;
 				}
 			}
+			return last + 1 - start;
+		}
+	}
+
+	/**
+	 * Gets the total length of the free blocks. This counter, like the other
+	 * free-space statistics, is maintained incrementally.
+	 * 
+	 * @return the number of free words
+	 */
+	public long getFreeWords() {
+		return freeWords;
+	}
+
+	/**
+	 * Gets the total length of the allocated blocks.
+	 * 
+	 * @return the number of allocated words
+	 */
+	public long getAllocatedWords() {
+		return allocatedWords;
+	}
+
+	/**
+	 * Gets the number of allocated blocks.
+	 * 
+	 * @return the number of allocated blocks
+	 */
+	public int getAllocatedBlockCount() {
+		return allocatedList.getSize();
+	}
+
+	/**
+	 * Gets the number of calls to malloc so far, including the calls that failed.
+	 * 
+	 * @return the number of mallocs
+	 */
+	public long getMallocCount() {
+		return mallocCount;
+	}
+
+	/**
+	 * Gets the number of calls to malloc so far that returned -1.
+	 * 
+	 * @return the number of failed mallocs
+	 */
+	public long getFailedMallocCount() {
+		return failedMallocCount;
+	}
+
+	/**
+	 * Gets the number of blocks freed so far.
+	 * 
+	 * @return the number of frees
+	 */
+	public long getFreeCount() {
+		return freeCount;
+	}
+
+	/**
+	 * Gets the number of freeList nodes that first fit visited, in all the
+	 * mallocs so far.
+	 * 
+	 * @return the number of nodes scanned
+	 */
+	public long getNodesScannedCount() {
+		return totalNodesScanned;
+	}
+
+	/**
+	 * Resets the cumulative counts: mallocs, failed mallocs, frees, nodes
+	 * scanned and hops. The other statistics describe the present state, and
+	 * are not reset.
+	 */
+	public void resetCounters() {
+		mallocCount = 0;
+		failedMallocCount = 0;
+		freeCount = 0;
+		totalNodesScanned = 0;
+		// restarts the hop counts of the lists as well
+		setHopCounting(hopCounting);
+	}
+
+	/**
+	 * Starts or stops counting the node hops of the freeList and the
+	 * allocatedList (see LinkedList.setHopCounting). Counting is off by default;
+	 * starting it again resets the counts.
+	 * 
+	 * @param enabled
+	 *        true to count hops, false to stop counting
+	 */
+	public void setHopCounting(boolean enabled) {
+		hopCounting = enabled;
+		mallocHops = 0;
+		hopMallocs = 0;
+		freeList.setHopCounting(enabled);
+		allocatedList.setHopCounting(enabled);
+	}
+
+	/**
+	 * Gets the number of node hops that the given list operation performed in
+	 * the freeList and the allocatedList, since hop counting was started.
+	 * 
+	 * @param op
+	 *        the list operation
+	 * @return the number of hops, or 0 if hops are not counted
+	 */
+	public long getListHops(ListOperation op) {
+		return freeList.getHops(op) + allocatedList.getHops(op);
+	}
+
+	/**
+	 * Gets the average number of node hops per malloc, since hop counting was
+	 * started: the nodes that first fit visited, and the hops of the list
+	 * operations that malloc called, such as removing the chosen block from
+	 * the freeList.
+	 * 
+	 * @return the hops per malloc, or 0 if hops are not counted
+	 */
+	public double getHopsPerMalloc() {
+		return hopMallocs == 0 ? 0 : (double) mallocHops / hopMallocs;
+	}
+
+	/** The node hops counted so far in the freeList and the allocatedList. */
+	private long listHops() {
+		return freeList.getTotalHops() + allocatedList.getTotalHops();
+	}
+
+	/**
+	 * Gets the number of free blocks, including the blocks held in fast bins.
+	 * 
+	 * @return the number of free blocks
+	 */
+	public int getFreeBlockCount() {
+		return freeList.getSize() + fastBinCount;
+	}
+
+	/**
+	 * Gets the length of the longest free block, in O(1). Keeping it up to
+	 * date costs O(log n) per malloc, free and merge, in the number of
+	 * distinct free block lengths.
+	 * 
+	 * @return the length of the longest free block, or 0 if there are none
+	 */
+	public int getLargestFreeBlock() {
+		return largestFree;
+	}
+
+	/**
+	 * Gets the external fragmentation of this memory space: 1 - (the length of
+	 * the longest free block) / (the total length of the free blocks). It is 0
+	 * when all the free space is in one block, and approaches 1 when the free
+	 * space is scattered in many small blocks.
+	 * 
+	 * @return the external fragmentation, between 0 and 1
+	 */
+	public double getFragmentation() {
+		return freeWords == 0 ? 0 : 1 - (double) getLargestFreeBlock() / freeWords;
+	}
+
+	/**
+	 * Enables automatic defragmentation. After a free, if the fragmentation is
+	 * above fragmentationThreshold or there are more than freeBlockThreshold
+	 * free blocks, a defragmentation pass is started, and is carried on by
+	 * defragStep, nodesPerStep nodes after each free, until it is complete.
+	 * To avoid passes that cannot merge anything, a new pass starts only after
+	 * a number of frees, since the previous pass, of at least an eighth of the
+	 * number of free blocks.
+	 * 
+	 * @param fragmentationThreshold
+	 *        the fragmentation above which a pass is started, between 0 and 1
+	 * @param freeBlockThreshold
+	 *        the number of free blocks above which a pass is started
+	 * @param nodesPerStep
+	 *        the work done after each free, or 0 to disable automatic defragmentation
+	 * @throws IllegalArgumentException
+	 *         if a threshold is out of range, or nodesPerStep is negative
+	 */
+	public void setAutoDefrag(double fragmentationThreshold, int freeBlockThreshold, int nodesPerStep) {
+		if (fragmentationThreshold < 0 || fragmentationThreshold > 1 || freeBlockThreshold < 0
+				|| nodesPerStep < 0) {
+			throw new IllegalArgumentException("auto defrag thresholds are out of range");
+		}
+		this.fragmentationThreshold = fragmentationThreshold;
+		this.freeBlockThreshold = freeBlockThreshold;
+		this.nodesPerStep = nodesPerStep;
+	}
+
+	/**
+	 * Tells this memory space that the allocator is idle. If automatic
+	 * defragmentation is enabled, completes the current defragmentation pass,
+	 * or runs a full one if the fragmentation is above half its threshold.
+	 */
+	public void onIdle() {
+		if (nodesPerStep == 0) {
+			return;
+		}
+		if (stepping || getFragmentation() > fragmentationThreshold / 2) {
+			while (!defragStep(0, 0)) {
+				// a single unbounded step completes the pass
+			}
+			freesSincePass = 0;
+		}
+	}
+
+	/** Does the automatic defragmentation work that is due after a free. */
+	private void maybeDefrag() {
+		if (nodesPerStep == 0) {
+			return;
+		}
+		freesSincePass++;
+		if (!stepping) {
+			boolean crossed = getFragmentation() > fragmentationThreshold
+					|| getFreeBlockCount() > freeBlockThreshold;
+			if (!crossed || freesSincePass < Math.max(1, getFreeBlockCount() / 8)) {
+				return;
+			}
+		}
+		if (defragStep(nodesPerStep, 0)) {
+			freesSincePass = 0;
+		}
+	}
+
+	/** Adds a block to the end of the freeList, and to the index of a pass in progress. */
+	private void addFree(MemoryBlock block) {
+		freeList.addLast(block);
+		countFree(block.length);
+		if (stepping) {
+			stepIndex.put(block.baseAddress, freeList.getLast());
+		}
+	}
+
+	/** Merges the free block of the given node into the given free block. */
+	private void mergeFree(MemoryBlock block, Node neighbour) {
+		growFree(block, neighbour.block);
+		stepPast(neighbour.block);
+		freeList.remove(neighbour);
+	}
+
+	/** Adds the length of a free neighbour to a free block, in the free-space statistics too. */
+	private void growFree(MemoryBlock block, MemoryBlock neighbour) {
+		uncountFree(block.length);
+		uncountFree(neighbour.length);
+		block.length += neighbour.length;
+		countFree(block.length);
+	}
+
+	private void countFree(int length) {
+		freeWords += length;
+		freeLengths.merge(length, 1, Integer::sum);
+		largestFree = Math.max(largestFree, length);
+	}
+
+	private void uncountFree(int length) {
+		freeWords -= length;
+		freeLengths.compute(length, (key, count) -> count == 1 ? null : count - 1);
+		if (length == largestFree && !freeLengths.containsKey(length)) {
+			// the last block of the largest length is gone
+			largestFree = freeLengths.isEmpty() ? 0 : freeLengths.lastKey();
+		}
+	}
+
+	/** Recomputes the free-space statistics, after the freeList was rebuilt. */
+	private void recountFree() {
+		freeWords = 0;
+		freeLengths.clear();
+		largestFree = 0;
+		ListIterator iterator = freeList.iterator();
+		while (iterator.hasNext()) {
+			countFree(iterator.next().length);
+		}
+		if (fastBins != null) {
+			for (LinkedList bin : fastBins) {
+				ListIterator binIterator = bin.iterator();
+				while (binIterator.hasNext()) {
+					countFree(binIterator.next().length);
+				}
+			}
+		}
+	}
+
+	/** Moves the blocks held in the fast bins to the end of the freeList. */
+	private void flushFastBins() {
+		if (fastBins == null) {
+			return;
+		}
+		for (int i = 0; i < fastBins.length; i++) {
+			while (fastBins[i].getSize() > 0) {
+				freeList.addLast(fastBins[i].getFirst().block);
+				fastBins[i].remove(0);
+			}
+		}
+		fastBinCount = 0;
+	}
+
+	/**
+	 * Returns the node of the free block whose base address equals the given
+	 * address, or null if there is no such block.
+	 */
+	private Node findFreeNode(int baseAddress) {
+		Node current = freeList.getFirst();
+		while (current != null && current.block.baseAddress != baseAddress) {
+			current = current.next;
 		}
+		return current;
 	}
 }
\ No newline at end of file
@@ -0,0 +1,441 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.SplittableRandom;
+
+/**
+ * Benchmarks MemorySpace.malloc, free, defrag and parallelDefrag, on free
+ * lists of 10 to 10^6 blocks, at several fragmentation levels.
+ * <p>
+ * Every measurement starts from a freshly built memory space, so that the
+ * operations being timed do not change the state that the next ones see.
+ * The memory space is built in O(n) with claim, in an order that keeps
+ * each claim and each free at the front of its list:
+ * <ul>
+ * <li>malloc: n free blocks of 8 words, except that a fraction (the level) of
+ * them is 1 word, too short for the malloc(8) being timed; at level 1, only
+ * the last free block fits. The free blocks are separated by allocated blocks,
+ * so the level measures how far first fit has to scan.</li>
+ * <li>free: the same layout at level 0; random allocated blocks are freed,
+ * which measures the search of the allocatedList.</li>
+ * <li>defrag and parallelDefrag: n free blocks of 1 word, where a fraction
+ * (the level) of them is directly followed by another free block, and can be
+ * merged with it. defrag is O(n^2), so it is measured up to 10^4 blocks only.</li>
+ * </ul>
+ * Each benchmark runs WARMUP iterations, and then MEASURED iterations whose
+ * mean and standard deviation are reported, in nanoseconds per operation. An
+ * iteration builds memory spaces and times operations on them until at least
+ * 20 ms of operations were timed, so that small free lists are measured over
+ * many operations too, or until building takes more than a second.
+ * <p>
+ * The benchmarks run in -forks fresh JVMs (3 by default), one after the
+ * other, as JMH does: the JIT and the memory layout differ from one JVM to the
+ * next, by more than the iterations of one JVM differ. A result is the median
+ * of the means of the forks, and its standard deviation includes the spread
+ * between the forks. With -forks 0, the benchmarks run in this JVM only.
+ * <p>
+ * Usage: java MemorySpaceBenchmark [-max exponent] [-only name] [-forks count]
+ * [-out file] [-baseline file] [-tolerance percent]. With -out, the results
+ * are saved; with -baseline, they are compared with saved results, and the
+ * program exits with status 1 if any benchmark is slower than its baseline by
+ * more than the tolerance (20% by default), and by more than three standard
+ * deviations of the two measurements, so that noise alone does not fail it.
+ * This is the benchmark gate for allocator changes.
+ */
+public class MemorySpaceBenchmark {
+
+	private static final int WARMUP = 3;
+	private static final int MEASURED = 5;
+	private static final int BATCH = 100;                // the operations timed per memory space
+	private static final long MIN_ITERATION_NANOS = 20000000; // the timed work per iteration
+	private static final long MAX_ITERATION_NANOS = 1000000000; // the wall time per iteration
+	private static final int MAX_SEQUENTIAL_DEFRAG = 10000;
+	private static final double[] MALLOC_LEVELS = { 0, 0.5, 0.9, 0.99, 1 };
+	private static final double[] DEFRAG_LEVELS = { 0, 0.5, 0.9 };
+	private static final double NOISE_SIGMAS = 3;         // the noise that the gate tolerates
+
+	private static volatile long sink;                   // keeps results alive
+
+	/** The result of one benchmark. */
+	private static class Result {
+
+		final String name;  // benchmark/n/level
+		final double mean;  // nanoseconds per operation
+		final double stdev;
+
+		Result(String name, double mean, double stdev) {
+			this.name = name;
+			this.mean = mean;
+			this.stdev = stdev;
+		}
+	}
+
+	/**
+	 * Runs the benchmarks.
+	 *
+	 * @param args
+	 *        the options, as described in the class comment
+	 * @throws IOException
+	 *         if a result file cannot be read or written, or a fork cannot be started
+	 * @throws InterruptedException
+	 *         if interrupted while waiting for a fork
+	 */
+	public static void main(String[] args) throws IOException, InterruptedException {
+		int maxExponent = 6;
+		String only = null;
+		String out = null;
+		String baseline = null;
+		double tolerance = 20;
+		int forks = 3;
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			switch (args[i]) {
+			case "-max":
+				maxExponent = Integer.parseInt(args[i + 1]);
+				break;
+			case "-only":
+				only = args[i + 1];
+				break;
+			case "-out":
+				out = args[i + 1];
+				break;
+			case "-baseline":
+				baseline = args[i + 1];
+				break;
+			case "-tolerance":
+				tolerance = Double.parseDouble(args[i + 1]);
+				break;
+			case "-forks":
+				forks = Integer.parseInt(args[i + 1]);
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown option " + args[i]);
+			}
+		}
+
+		System.out.printf("%-36s %14s %10s%n", "benchmark/freeBlocks/level", "ns/op", "stdev");
+		ArrayList<Result> results = forks > 0 ? fork(forks, maxExponent, only) : run(maxExponent, only);
+		if (out != null) {
+			save(results, out);
+		}
+		if (baseline != null && !compare(results, baseline, tolerance)) {
+			System.exit(1);
+		}
+	}
+
+	/** Runs the benchmarks in this JVM, and reports each result as it comes. */
+	private static ArrayList<Result> run(int maxExponent, String only) {
+		ArrayList<Result> results = new ArrayList<Result>();
+		for (int e = 1; e <= maxExponent; e++) {
+			int n = (int) Math.pow(10, e);
+			if (only == null || only.equals("malloc")) {
+				for (double level : MALLOC_LEVELS) {
+					results.add(report(measure("malloc", n, level)));
+				}
+			}
+			if (only == null || only.equals("free")) {
+				results.add(report(measure("free", n, 0)));
+			}
+			for (double level : DEFRAG_LEVELS) {
+				if ((only == null || only.equals("defrag")) && n <= MAX_SEQUENTIAL_DEFRAG) {
+					results.add(report(measure("defrag", n, level)));
+				}
+				if (only == null || only.equals("parallelDefrag")) {
+					results.add(report(measure("parallelDefrag", n, level)));
+				}
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Runs the benchmarks in the given number of fresh JVMs, one after the
+	 * other, and combines their results: the result of a benchmark is the
+	 * median of the means of the forks, and its standard deviation adds the
+	 * spread of those means to the spread within a fork, since the JIT and
+	 * the memory layout of each JVM make a difference that one JVM cannot see.
+	 */
+	private static ArrayList<Result> fork(int forks, int maxExponent, String only)
+			throws IOException, InterruptedException {
+		String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+		LinkedHashMap<String, ArrayList<Result>> byName = new LinkedHashMap<String, ArrayList<Result>>();
+		for (int f = 0; f < forks; f++) {
+			Path file = Files.createTempFile("benchmark", ".txt");
+			try {
+				ArrayList<String> command = new ArrayList<String>(Arrays.asList(java, "-cp",
+						System.getProperty("java.class.path"), MemorySpaceBenchmark.class.getName(),
+						"-max", String.valueOf(maxExponent), "-forks", "0", "-out", file.toString()));
+				if (only != null) {
+					command.add("-only");
+					command.add(only);
+				}
+				Process process = new ProcessBuilder(command).redirectOutput(ProcessBuilder.Redirect.DISCARD)
+						.redirectError(ProcessBuilder.Redirect.INHERIT).start();
+				if (process.waitFor() != 0) {
+					throw new IOException("Fork " + (f + 1) + " failed");
+				}
+				for (Result result : load(file.toString()).values()) {
+					byName.computeIfAbsent(result.name, name -> new ArrayList<Result>()).add(result);
+				}
+			} finally {
+				Files.delete(file);
+			}
+		}
+		ArrayList<Result> results = new ArrayList<Result>();
+		for (ArrayList<Result> runs : byName.values()) {
+			double[] means = new double[runs.size()];
+			double average = 0;
+			double within = 0;
+			for (int i = 0; i < means.length; i++) {
+				means[i] = runs.get(i).mean;
+				average += means[i] / means.length;
+				within += runs.get(i).stdev * runs.get(i).stdev / means.length;
+			}
+			double between = 0;
+			for (double mean : means) {
+				between += (mean - average) * (mean - average) / Math.max(1, means.length - 1);
+			}
+			Arrays.sort(means);
+			double median = means.length % 2 == 1 ? means[means.length / 2]
+					: (means[means.length / 2 - 1] + means[means.length / 2]) / 2;
+			results.add(report(new Result(runs.get(0).name, median, Math.sqrt(within + between))));
+		}
+		return results;
+	}
+
+	/** Runs one benchmark: the warmup iterations, and then the measured ones. */
+	private static Result measure(String benchmark, int n, double level) {
+		SplittableRandom random = new SplittableRandom(n * 31L + (long) (level * 1000));
+		double[] samples = new double[MEASURED];
+		int ops = benchmark.equals("malloc") || benchmark.equals("free")
+				? Math.min(BATCH, Math.max(1, n / 10)) : 1;
+		for (int i = 0; i < WARMUP + MEASURED; i++) {
+			long nanos = 0;
+			long count = 0;
+			long wallStart = System.nanoTime();
+			while (nanos < MIN_ITERATION_NANOS
+					&& (count == 0 || System.nanoTime() - wallStart < MAX_ITERATION_NANOS)) {
+				nanos += iteration(benchmark, n, level, ops, random);
+				count += ops;
+			}
+			if (i >= WARMUP) {
+				samples[i - WARMUP] = (double) nanos / count;
+			}
+		}
+		double mean = 0;
+		for (double sample : samples) {
+			mean += sample / MEASURED;
+		}
+		double variance = 0;
+		for (double sample : samples) {
+			variance += (sample - mean) * (sample - mean) / MEASURED;
+		}
+		String name = benchmark + "/" + n + "/" + level;
+		return new Result(name, mean, Math.sqrt(variance));
+	}
+
+	/**
+	 * Builds a fresh memory space, and times count benchmarked operations on
+	 * it. Returns the time of the operations, in nanoseconds.
+	 */
+	private static long iteration(String benchmark, int n, double level, int count, SplittableRandom random) {
+		switch (benchmark) {
+		case "malloc": {
+			MemorySpace space = mallocLayout(n, level, random, null);
+			long start = System.nanoTime();
+			for (int i = 0; i < count; i++) {
+				sink += space.malloc(8);
+			}
+			return System.nanoTime() - start;
+		}
+		case "free": {
+			ArrayList<Integer> allocated = new ArrayList<Integer>();
+			MemorySpace space = mallocLayout(n, 0, random, allocated);
+			int[] addresses = new int[count];
+			for (int i = 0; i < count; i++) {
+				int j = random.nextInt(allocated.size() - i);
+				addresses[i] = allocated.get(j);
+				allocated.set(j, allocated.get(allocated.size() - i - 1));
+			}
+			long start = System.nanoTime();
+			for (int i = 0; i < count; i++) {
+				space.free(addresses[i]);
+			}
+			long nanos = System.nanoTime() - start;
+			sink += space.getFreeBlockCount();
+			return nanos;
+		}
+		default: {
+			MemorySpace space = defragLayout(n, level, random);
+			long start = System.nanoTime();
+			if (benchmark.equals("defrag")) {
+				space.defrag();
+			} else {
+				space.parallelDefrag();
+			}
+			long nanos = System.nanoTime() - start;
+			sink += space.getFreeBlockCount();
+			return nanos;
+		}
+		}
+	}
+
+	/**
+	 * Builds the malloc layout: n free blocks, each followed by an allocated
+	 * block of 1 word. The addresses of the allocated blocks are added to
+	 * allocated, if it is not null.
+	 */
+	private static MemorySpace mallocLayout(int n, double level, SplittableRandom random,
+			ArrayList<Integer> allocated) {
+		int[] lengths = new int[n];
+		int size = 0;
+		for (int i = 0; i < n; i++) {
+			boolean small = level >= 1 ? i < n - 1 : random.nextDouble() < level;
+			lengths[i] = small ? 1 : 8;
+			size += lengths[i] + 1;
+		}
+		boolean[] free = new boolean[2 * n];
+		int[] blockLengths = new int[2 * n];
+		for (int i = 0; i < n; i++) {
+			free[2 * i] = true;
+			blockLengths[2 * i] = lengths[i];
+			blockLengths[2 * i + 1] = 1;
+		}
+		return build(size, blockLengths, free, allocated);
+	}
+
+	/**
+	 * Builds the defrag layout: n free blocks of 1 word; a fraction (the level)
+	 * of them is followed by another free block, and the others by an
+	 * allocated block of 1 word.
+	 */
+	private static MemorySpace defragLayout(int n, double level, SplittableRandom random) {
+		boolean[] free = new boolean[2 * n];
+		int count = 0;
+		for (int i = 0; i < n; i++) {
+			free[count++] = true;
+			if (i == n - 1 || random.nextDouble() >= level) {
+				free[count++] = false;
+			}
+		}
+		int[] blockLengths = new int[count];
+		Arrays.fill(blockLengths, 1);
+		return build(count, blockLengths, Arrays.copyOf(free, count), null);
+	}
+
+	/**
+	 * Builds a memory space whose blocks, in address order, have the given
+	 * lengths, and are free or allocated as given. Each free block is a
+	 * separate node of the freeList, even if it is next to another free block.
+	 * <p>
+	 * The blocks to be freed are claimed first, in increasing address order,
+	 * and the blocks to keep allocated are claimed next, in decreasing address
+	 * order, so that every claim finds its free block at the front of the
+	 * freeList. The blocks to be freed are then at the front of the
+	 * allocatedList, in increasing address order, so that every free finds its
+	 * block at the front. Building takes O(n).
+	 */
+	private static MemorySpace build(int size, int[] lengths, boolean[] free, ArrayList<Integer> allocated) {
+		MemorySpace space = new MemorySpace(size);
+		int[] addresses = new int[lengths.length];
+		for (int i = 1; i < lengths.length; i++) {
+			addresses[i] = addresses[i - 1] + lengths[i - 1];
+		}
+		for (int i = 0; i < lengths.length; i++) {
+			if (free[i]) {
+				claimOrFail(space, addresses[i], lengths[i]);
+			}
+		}
+		for (int i = lengths.length - 1; i >= 0; i--) {
+			if (!free[i]) {
+				claimOrFail(space, addresses[i], lengths[i]);
+				if (allocated != null) {
+					allocated.add(addresses[i]);
+				}
+			}
+		}
+		for (int i = 0; i < lengths.length; i++) {
+			if (free[i]) {
+				space.free(addresses[i]);
+			}
+		}
+		space.resetCounters();
+		return space;
+	}
+
+	private static void claimOrFail(MemorySpace space, int address, int length) {
+		if (!space.claim(address, length)) {
+			throw new IllegalStateException("Unable to claim (" + address + " , " + length + ")");
+		}
+	}
+
+	/** Saves results, a line "name mean stdev" per benchmark. */
+	private static void save(ArrayList<Result> results, String file) throws IOException {
+		try (PrintWriter writer = new PrintWriter(file)) {
+			for (Result result : results) {
+				writer.println(result.name + " " + result.mean + " " + result.stdev);
+			}
+		}
+	}
+
+	/** Loads results saved by save, by name; the stdev is 0 if a line has none. */
+	private static LinkedHashMap<String, Result> load(String file) throws IOException {
+		LinkedHashMap<String, Result> results = new LinkedHashMap<String, Result>();
+		try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] fields = line.trim().split(" ");
+				if (fields.length >= 2) {
+					double stdev = fields.length >= 3 ? Double.parseDouble(fields[2]) : 0;
+					results.put(fields[0], new Result(fields[0], Double.parseDouble(fields[1]), stdev));
+				}
+			}
+		}
+		return results;
+	}
+
+	private static Result report(Result result) {
+		System.out.printf("%-36s %14.1f %10.1f%n", result.name, result.mean, result.stdev);
+		return result;
+	}
+
+	/**
+	 * Compares results with the baseline saved by -out. Returns false if a
+	 * benchmark is slower than its baseline by more than the tolerance, in
+	 * percent, and by more than NOISE_SIGMAS standard deviations of the
+	 * difference, so that noisy benchmarks (the sub-microsecond ones, mostly)
+	 * do not fail the gate.
+	 */
+	private static boolean compare(ArrayList<Result> results, String baseline, double tolerance)
+			throws IOException {
+		HashMap<String, Result> base = load(baseline);
+		boolean pass = true;
+		System.out.println();
+		for (Result result : results) {
+			Result before = base.get(result.name);
+			if (before == null || before.mean == 0) {
+				continue;
+			}
+			double change = (result.mean - before.mean) / before.mean * 100;
+			double noise = NOISE_SIGMAS * Math.sqrt(before.stdev * before.stdev + result.stdev * result.stdev);
+			if (change > tolerance) {
+				if (result.mean - before.mean > noise) {
+					pass = false;
+					System.out.printf("REGRESSION %-36s %+.1f%%%n", result.name, change);
+				} else {
+					System.out.printf("noise      %-36s %+.1f%%, within %.0f stdev%n", result.name, change,
+							NOISE_SIGMAS);
+				}
+			}
+		}
+		System.out.println(pass ? "No regression above " + tolerance + "%" : "Benchmark gate failed");
+		return pass;
+	}
+}
@@ -0,0 +1,93 @@
+/**
+ * The management interface of a memory space, as registered by
+ * MemorySpaceMonitor. Lengths are in words.
+ */
+public interface MemorySpaceMXBean {
+
+	/**
+	 * @return the total length of the free blocks
+	 */
+	long getFreeWords();
+
+	/**
+	 * @return the total length of the allocated blocks
+	 */
+	long getUsedWords();
+
+	/**
+	 * @return the number of free blocks
+	 */
+	int getFreeBlockCount();
+
+	/**
+	 * @return the number of allocated blocks
+	 */
+	int getAllocatedBlockCount();
+
+	/**
+	 * @return the length of the longest free block
+	 */
+	int getLargestFreeBlock();
+
+	/**
+	 * @return the external fragmentation: 1 - (longest free block) / (free words)
+	 */
+	double getFragmentation();
+
+	/**
+	 * @return the number of mallocs since the counters were reset
+	 */
+	long getMallocCount();
+
+	/**
+	 * @return the number of mallocs that failed since the counters were reset
+	 */
+	long getFailedMallocCount();
+
+	/**
+	 * @return the number of frees since the counters were reset
+	 */
+	long getFreeCount();
+
+	/**
+	 * @return the mallocs per second, since the counters were reset
+	 */
+	double getMallocRate();
+
+	/**
+	 * @return the frees per second, since the counters were reset
+	 */
+	double getFreeRate();
+
+	/**
+	 * @return the freeList nodes that first fit visited since the counters were reset
+	 */
+	long getNodesScannedCount();
+
+	/**
+	 * @return the average number of freeList nodes visited per malloc
+	 */
+	double getNodesScannedPerMalloc();
+
+	/**
+	 * @return the average number of node hops per malloc, or 0 if hops are not
+	 *         counted (see MemorySpace.setHopCounting)
+	 */
+	double getHopsPerMalloc();
+
+	/**
+	 * @return the node hops of all the list operations in the freeList and the
+	 *         allocatedList, or 0 if hops are not counted
+	 */
+	long getListHops();
+
+	/**
+	 * Defragments the memory space.
+	 */
+	void defrag();
+
+	/**
+	 * Resets the cumulative counters, and the start of the rates.
+	 */
+	void resetCounters();
+}
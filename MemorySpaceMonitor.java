@@ -0,0 +1,178 @@
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Exposes the statistics of a memory space through JMX, as an MXBean named
+ * MemorySpace:type=MemorySpace,name=&lt;name&gt; in the platform MBean server.
+ * <p>
+ * Every attribute is read, and every operation is run, while holding the
+ * monitor of the memory space, so the threads that use the memory space must
+ * synchronize on it as well (see BackgroundDefragmenter). The statistics are
+ * maintained incrementally by MemorySpace, so reading them never walks a list.
+ */
+public class MemorySpaceMonitor implements MemorySpaceMXBean, AutoCloseable {
+
+	private final MemorySpace space;   // the monitored memory space
+	private final ObjectName name;     // the name of the registered MXBean
+	private volatile long resetTime;   // when the counters were last reset, in nanoseconds
+
+	/**
+	 * Constructs a new monitor, and registers it in the platform MBean server.
+	 *
+	 * @param space
+	 *        the memory space to monitor
+	 * @param name
+	 *        the name of the memory space, unique among the monitored memory spaces
+	 * @throws IllegalArgumentException
+	 *         if space is null, or the name is not valid or already registered
+	 */
+	public MemorySpaceMonitor(MemorySpace space, String name) {
+		if (space == null) {
+			throw new IllegalArgumentException("space must not be null");
+		}
+		this.space = space;
+		this.resetTime = System.nanoTime();
+		try {
+			this.name = new ObjectName("MemorySpace:type=MemorySpace,name=" + ObjectName.quote(name));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, this.name);
+		} catch (JMException e) {
+			throw new IllegalArgumentException("Unable to register " + name + ": " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Gets the name under which this monitor is registered.
+	 *
+	 * @return the name of the MXBean
+	 */
+	public ObjectName getObjectName() {
+		return name;
+	}
+
+	/**
+	 * Unregisters this monitor from the platform MBean server.
+	 */
+	public void close() {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			if (server.isRegistered(name)) {
+				server.unregisterMBean(name);
+			}
+		} catch (JMException e) {
+			throw new IllegalStateException("Unable to unregister " + name, e);
+		}
+	}
+
+	public long getFreeWords() {
+		synchronized (space) {
+			return space.getFreeWords();
+		}
+	}
+
+	public long getUsedWords() {
+		synchronized (space) {
+			return space.getAllocatedWords();
+		}
+	}
+
+	public int getFreeBlockCount() {
+		synchronized (space) {
+			return space.getFreeBlockCount();
+		}
+	}
+
+	public int getAllocatedBlockCount() {
+		synchronized (space) {
+			return space.getAllocatedBlockCount();
+		}
+	}
+
+	public int getLargestFreeBlock() {
+		synchronized (space) {
+			return space.getLargestFreeBlock();
+		}
+	}
+
+	public double getFragmentation() {
+		synchronized (space) {
+			return space.getFragmentation();
+		}
+	}
+
+	public long getMallocCount() {
+		synchronized (space) {
+			return space.getMallocCount();
+		}
+	}
+
+	public long getFailedMallocCount() {
+		synchronized (space) {
+			return space.getFailedMallocCount();
+		}
+	}
+
+	public long getFreeCount() {
+		synchronized (space) {
+			return space.getFreeCount();
+		}
+	}
+
+	public double getMallocRate() {
+		return perSecond(getMallocCount());
+	}
+
+	public double getFreeRate() {
+		return perSecond(getFreeCount());
+	}
+
+	public long getNodesScannedCount() {
+		synchronized (space) {
+			return space.getNodesScannedCount();
+		}
+	}
+
+	public double getNodesScannedPerMalloc() {
+		synchronized (space) {
+			long mallocs = space.getMallocCount();
+			return mallocs == 0 ? 0 : (double) space.getNodesScannedCount() / mallocs;
+		}
+	}
+
+	public double getHopsPerMalloc() {
+		synchronized (space) {
+			return space.getHopsPerMalloc();
+		}
+	}
+
+	public long getListHops() {
+		synchronized (space) {
+			long hops = 0;
+			for (ListOperation op : ListOperation.values()) {
+				hops += space.getListHops(op);
+			}
+			return hops;
+		}
+	}
+
+	public void defrag() {
+		synchronized (space) {
+			space.defrag();
+		}
+	}
+
+	public void resetCounters() {
+		synchronized (space) {
+			space.resetCounters();
+			resetTime = System.nanoTime();
+		}
+	}
+
+	/** Divides a count by the seconds elapsed since the counters were reset. */
+	private double perSecond(long count) {
+		double seconds = (System.nanoTime() - resetTime) / 1e9;
+		return seconds <= 0 ? 0 : count / seconds;
+	}
+}
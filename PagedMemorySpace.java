@@ -0,0 +1,399 @@
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Represents a memory space whose address range is partitioned into pages of
+ * a fixed length, with free lists sharded per page, as in mimalloc.
+ * <p>
+ * Each small page holds blocks of a single size class (a power of two), and
+ * has three short free lists of its own: the free list that malloc pops from,
+ * the local free list that the owner thread frees to, and the thread-free list
+ * that other threads push to, lock-free. When the free list of a page runs
+ * out, the other two lists are collected into it in one step. A page whose
+ * blocks are all free is reclaimed in O(1), and is reused by any size class.
+ * <p>
+ * The page containing an address is found in O(1), by dividing the address by
+ * the page length. Requests longer than a quarter of a page are served as runs
+ * of whole pages, managed by a MemorySpace whose unit is a page.
+ * <p>
+ * The space is owned by the thread that created it: only that thread may call
+ * malloc, while any thread may call free.
+ */
+public class PagedMemorySpace implements Allocator {
+
+	/** A small page: blocks of one size class, and their free lists. */
+	private static class Page {
+
+		final int index;         // the page number
+		final int blockLength;   // the length of each block, in words
+		final int sizeClass;     // blockLength is 2^sizeClass
+		final int[] next;        // next[i] is the block after block i, in its free list
+		int free;                // the first block of the free list, or -1
+		int localFree;           // the first block of the local free list, or -1
+		final AtomicInteger threadFree; // the first block of the thread-free list, or -1
+		final AtomicLongArray allocated; // a bit per block, set while the block is allocated
+		int used;                // blocks that are not in free or localFree
+		Page prev;               // the previous page of the same size class
+		Page nextPage;           // the next page of the same size class
+
+		Page(int index, int pageSize, int sizeClass) {
+			this.index = index;
+			this.sizeClass = sizeClass;
+			this.blockLength = 1 << sizeClass;
+			int capacity = pageSize >>> sizeClass;
+			this.next = new int[capacity];
+			for (int i = 0; i < capacity; i++) {
+				next[i] = i + 1 < capacity ? i + 1 : -1;
+			}
+			this.free = 0;
+			this.localFree = -1;
+			this.threadFree = new AtomicInteger(-1);
+			this.allocated = new AtomicLongArray((capacity + 63) >>> 6);
+		}
+
+		/** Clears the allocated bit of a block, and returns false if it was not set. */
+		boolean release(int block) {
+			long bit = 1L << block;
+			long word;
+			do {
+				word = allocated.get(block >>> 6);
+				if ((word & bit) == 0) {
+					return false;
+				}
+			} while (!allocated.compareAndSet(block >>> 6, word, word & ~bit));
+			return true;
+		}
+	}
+
+	/** A free of a large run, made by a thread other than the owner. */
+	private static class RemoteFree {
+
+		final int address;
+		final RemoteFree next;
+
+		RemoteFree(int address, RemoteFree next) {
+			this.address = address;
+			this.next = next;
+		}
+	}
+
+	private final int pageSize;         // the length of each page, in words
+	private final int maxSmallClass;    // blocks of up to 2^maxSmallClass words are small
+	private final Thread owner;         // the only thread that may call malloc
+
+	private final MemorySpace pageSpace; // runs of pages; its addresses are page numbers
+	private final Page[] pageTable;      // the small page of each page number, or null
+	private final int[] runLength;       // the length of each large run, by first page
+	private final Page[] pages;          // per size class, pages that may have free blocks
+
+	private final int[] cachedPages;     // reclaimed pages, kept for reuse
+	private int cachedCount;             // the number of reclaimed pages in the cache
+
+	// Frees of large runs, pushed by other threads
+	private final AtomicReference<RemoteFree> remoteFrees;
+
+	/**
+	 * Constructs a new paged memory space, owned by the current thread.
+	 *
+	 * @param maxSize
+	 *        the size of the memory space to be managed; only whole pages are used
+	 * @param pageSize
+	 *        the length of each page, in words (a power of two, at least 4)
+	 * @throws IllegalArgumentException
+	 *         if pageSize is not a power of two, or is larger than maxSize
+	 */
+	public PagedMemorySpace(int maxSize, int pageSize) {
+		if (pageSize < 4 || Integer.bitCount(pageSize) != 1 || pageSize > maxSize) {
+			throw new IllegalArgumentException("pageSize must be a power of two between 4 and maxSize");
+		}
+		this.pageSize = pageSize;
+		this.maxSmallClass = Integer.numberOfTrailingZeros(pageSize) - 2;
+		this.owner = Thread.currentThread();
+		int pageCount = maxSize / pageSize;
+		this.pageSpace = new MemorySpace(pageCount);
+		this.pageTable = new Page[pageCount];
+		this.runLength = new int[pageCount];
+		this.pages = new Page[maxSmallClass + 1];
+		this.cachedPages = new int[Math.max(1, pageCount / 8)];
+		this.remoteFrees = new AtomicReference<RemoteFree>(null);
+	}
+
+	/**
+	 * Allocates a memory block of a requested length (in words). Small blocks
+	 * are rounded up to a power of two, and large blocks to whole pages.
+	 *
+	 * @param length
+	 *        the length (in words) of the memory block that has to be allocated
+	 * @return the base address of the allocated block, or -1 if unable to allocate
+	 * @throws IllegalArgumentException
+	 *         if length is not positive
+	 * @throws IllegalStateException
+	 *         if the calling thread is not the owner of this space
+	 */
+	public int malloc(int length) {
+		if (length <= 0) {
+			throw new IllegalArgumentException("length must be positive");
+		}
+		if (Thread.currentThread() != owner) {
+			throw new IllegalStateException("Only the owner thread may call malloc");
+		}
+		drainRemoteFrees();
+		int sizeClass = 32 - Integer.numberOfLeadingZeros(length - 1);
+		if (sizeClass > maxSmallClass) {
+			return mallocLarge((length + pageSize - 1) / pageSize);
+		}
+		Page page = pages[sizeClass];
+		while (page != null) {
+			if (page.free == -1) {
+				collect(page);
+			}
+			if (page.free != -1) {
+				break;
+			}
+			page = page.nextPage;
+		}
+		if (page == null) {
+			page = newPage(sizeClass);
+			if (page == null) {
+				return -1;
+			}
+		} else if (page != pages[sizeClass]) {
+			// moves the page with free blocks to the front of its class
+			unlink(page);
+			link(page);
+		}
+		int block = page.free;
+		page.free = page.next[block];
+		page.used++;
+		page.allocated.getAndAccumulate(block >>> 6, 1L << block, (word, bit) -> word | bit);
+		return page.index * pageSize + (block << page.sizeClass);
+	}
+
+	/**
+	 * Frees the memory block whose base address equals the given address.
+	 * A free by the owner thread goes to the local free list of the block's page;
+	 * a free by any other thread is pushed, lock-free, onto the page's
+	 * thread-free list, and is collected by the owner later.
+	 *
+	 * @param address
+	 *        the base address of the block to free
+	 * @throws IllegalArgumentException
+	 *         if the address is not the address of an allocated block
+	 */
+	public void free(int address) {
+		int index = address / pageSize;
+		if (address < 0 || index >= pageTable.length) {
+			throw new IllegalArgumentException("address is out of this space");
+		}
+		Page page = pageTable[index];
+		boolean local = Thread.currentThread() == owner;
+		if (page == null) {
+			if (local) {
+				freeLarge(address);
+			} else {
+				if (!isRun(address)) {
+					throw new IllegalArgumentException("address is not the address of a block");
+				}
+				RemoteFree head;
+				RemoteFree entry;
+				do {
+					head = remoteFrees.get();
+					entry = new RemoteFree(address, head);
+				} while (!remoteFrees.compareAndSet(head, entry));
+			}
+			return;
+		}
+		int offset = address - index * pageSize;
+		if ((offset & (page.blockLength - 1)) != 0) {
+			throw new IllegalArgumentException("address is not the address of a block");
+		}
+		int block = offset >>> page.sizeClass;
+		// clearing the bit first rejects a double free, even by two threads at once
+		if (!page.release(block)) {
+			throw new IllegalArgumentException("address is not the address of an allocated block");
+		}
+		if (local) {
+			page.next[block] = page.localFree;
+			page.localFree = block;
+			if (--page.used == 0 && (page.prev != null || page.nextPage != null)) {
+				// keeps the last page of a class, to avoid thrashing
+				retire(page);
+			}
+		} else {
+			int head;
+			do {
+				head = page.threadFree.get();
+				page.next[block] = head;
+			} while (!page.threadFree.compareAndSet(head, block));
+		}
+	}
+
+	/**
+	 * Gets the length of the pages of this space.
+	 *
+	 * @return the page length, in words
+	 */
+	public int getPageSize() {
+		return pageSize;
+	}
+
+	/**
+	 * Gets the number of small pages that are presently in use.
+	 *
+	 * @return the number of small pages in use
+	 */
+	public int getSmallPageCount() {
+		int count = 0;
+		for (Page first : pages) {
+			for (Page page = first; page != null; page = page.nextPage) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Moves the thread-free list of a page into its free list, and the local
+	 * free list too, if the free list is empty.
+	 */
+	private void collect(Page page) {
+		if (page.free == -1) {
+			page.free = page.localFree;
+			page.localFree = -1;
+		}
+		if (page.threadFree.get() != -1) {
+			int block = page.threadFree.getAndSet(-1);
+			while (block != -1) {
+				int following = page.next[block];
+				page.next[block] = page.free;
+				page.free = block;
+				page.used--;
+				block = following;
+			}
+		}
+	}
+
+	/** Starts a new small page of the given class, reusing a reclaimed page if possible. */
+	private Page newPage(int sizeClass) {
+		int index = -1;
+		if (cachedCount == 0) {
+			index = pageSpace.malloc(1);
+			if (index == -1) {
+				reclaimFreePages();
+			}
+		}
+		if (cachedCount > 0) {
+			index = cachedPages[--cachedCount];
+		} else if (index == -1) {
+			return null;
+		}
+		Page page = new Page(index, pageSize, sizeClass);
+		pageTable[index] = page;
+		link(page);
+		return page;
+	}
+
+	/**
+	 * Collects the frees of other threads in all the small pages, and reclaims
+	 * the pages whose blocks are all free.
+	 */
+	private void reclaimFreePages() {
+		for (int sizeClass = 0; sizeClass < pages.length; sizeClass++) {
+			Page page = pages[sizeClass];
+			while (page != null) {
+				Page following = page.nextPage;
+				collect(page);
+				if (page.used == 0) {
+					retire(page);
+				}
+				page = following;
+			}
+		}
+	}
+
+	/** Reclaims a page whose blocks are all free. */
+	private void retire(Page page) {
+		unlink(page);
+		pageTable[page.index] = null;
+		if (cachedCount < cachedPages.length) {
+			cachedPages[cachedCount++] = page.index;
+		} else {
+			pageSpace.free(page.index);
+		}
+	}
+
+	private int mallocLarge(int pageCount) {
+		int index = pageSpace.malloc(pageCount);
+		if (index == -1) {
+			// the free and cached pages may be what is missing for a long enough run
+			reclaimFreePages();
+			while (cachedCount > 0) {
+				pageSpace.free(cachedPages[--cachedCount]);
+			}
+			pageSpace.defrag();
+			index = pageSpace.malloc(pageCount);
+		}
+		if (index == -1) {
+			return -1;
+		}
+		runLength[index] = pageCount;
+		return index * pageSize;
+	}
+
+	private void freeLarge(int address) {
+		if (!isRun(address)) {
+			throw new IllegalArgumentException("address is not the address of a block");
+		}
+		runLength[address / pageSize] = 0;
+		pageSpace.free(address / pageSize);
+	}
+
+	/** Returns true if the address is the address of an allocated run of pages. */
+	private boolean isRun(int address) {
+		return address % pageSize == 0 && runLength[address / pageSize] != 0;
+	}
+
+	private void drainRemoteFrees() {
+		if (remoteFrees.get() == null) {
+			return;
+		}
+		for (RemoteFree e = remoteFrees.getAndSet(null); e != null; e = e.next) {
+			// free checked the address, but two threads may both have queued
+			// the same run; the second free is dropped, not the rest of the chain
+			if (isRun(e.address)) {
+				freeLarge(e.address);
+			}
+		}
+	}
+
+	private void link(Page page) {
+		page.prev = null;
+		page.nextPage = pages[page.sizeClass];
+		if (page.nextPage != null) {
+			page.nextPage.prev = page;
+		}
+		pages[page.sizeClass] = page;
+	}
+
+	private void unlink(Page page) {
+		if (page.prev != null) {
+			page.prev.nextPage = page.nextPage;
+		} else {
+			pages[page.sizeClass] = page.nextPage;
+		}
+		if (page.nextPage != null) {
+			page.nextPage.prev = page.prev;
+		}
+		page.prev = null;
+		page.nextPage = null;
+	}
+
+	/**
+	 * A textual representation of this space, for debugging: the runs of pages,
+	 * as page numbers.
+	 */
+	public String toString() {
+		return pageSpace.toString();
+	}
+}
@@ -0,0 +1,9 @@
+/**
+ * Represents a distribution of block lengths, for WorkloadGenerator.
+ */
+public enum SizeDistribution {
+    UNIFORM,    // every length between the minimum and the maximum is equally likely
+    ZIPF,       // the k-th shortest length has a weight of 1 / k
+    BIMODAL,    // mostly short blocks from the low end of the range, some long ones from the high end
+    POWER_MOD   // the i-th length is (i + 2)^5 mod 123, as in LinkedListTest
+}
@@ -0,0 +1,277 @@
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Represents a slab allocator of fixed-length slots, on top of a memory space.
+ * <p>
+ * Each slab is a single block, allocated from the memory space by malloc, and
+ * carved into equal-length slots. The occupancy of the slots of a slab is
+ * tracked by a bitmap. The slabs are kept in three lists: partial slabs (some
+ * slots are free), full slabs and empty slabs. Slots are always allocated
+ * from a partial slab if there is one, then from an empty slab, and only then
+ * a new slab is allocated. This way, allocating a slot costs one bitmap search,
+ * rather than a scan of the free list of the memory space.
+ */
+public class SlabAllocator {
+
+	/** A slab: one block of the memory space, carved into slots. */
+	private static class Slab {
+
+		final int baseAddress; // the address of the first slot
+		final long[] bitmap;   // bit i is set if slot i is allocated
+		int used;              // the number of allocated slots
+		int hint;              // a bitmap word that may have a free slot
+		SlabList list;         // the list that this slab is presently in
+		Slab prev;             // the previous slab in that list
+		Slab next;             // the next slab in that list
+
+		Slab(int baseAddress, int slots) {
+			this.baseAddress = baseAddress;
+			this.bitmap = new long[(slots + 63) / 64];
+		}
+	}
+
+	/** A doubly linked list of slabs, so that a slab can move between lists in O(1). */
+	private static class SlabList {
+
+		Slab first; // the first slab of this list
+		int size;   // the number of slabs in this list
+
+		void add(Slab slab) {
+			slab.list = this;
+			slab.prev = null;
+			slab.next = first;
+			if (first != null) {
+				first.prev = slab;
+			}
+			first = slab;
+			size++;
+		}
+
+		void remove(Slab slab) {
+			if (slab.prev != null) {
+				slab.prev.next = slab.next;
+			} else {
+				first = slab.next;
+			}
+			if (slab.next != null) {
+				slab.next.prev = slab.prev;
+			}
+			slab.list = null;
+			slab.prev = null;
+			slab.next = null;
+			size--;
+		}
+	}
+
+	private final MemorySpace space; // the memory space that the slabs come from
+	private final int slotLength;    // the length of each slot, in words
+	private final int slotsPerSlab;  // the number of slots in each slab
+	private final int maxEmptySlabs; // empty slabs beyond this are returned to space
+
+	private final SlabList partial;  // slabs with both free and allocated slots
+	private final SlabList full;     // slabs with no free slots
+	private final SlabList empty;    // slabs with no allocated slots
+
+	// All the slabs of this allocator, by base address
+	private final TreeMap<Integer, Slab> slabs;
+
+	/**
+	 * Constructs a new slab allocator, that keeps at most one empty slab.
+	 *
+	 * @param space
+	 *        the memory space that the slabs are allocated from
+	 * @param slotLength
+	 *        the length of each slot, in words
+	 * @param slotsPerSlab
+	 *        the number of slots in each slab
+	 */
+	public SlabAllocator(MemorySpace space, int slotLength, int slotsPerSlab) {
+		this(space, slotLength, slotsPerSlab, 1);
+	}
+
+	/**
+	 * Constructs a new slab allocator.
+	 *
+	 * @param space
+	 *        the memory space that the slabs are allocated from
+	 * @param slotLength
+	 *        the length of each slot, in words
+	 * @param slotsPerSlab
+	 *        the number of slots in each slab
+	 * @param maxEmptySlabs
+	 *        the number of empty slabs that are kept for reuse, rather than
+	 *        being freed back to the memory space
+	 * @throws IllegalArgumentException
+	 *         if space is null, or if one of the numbers is out of range
+	 */
+	public SlabAllocator(MemorySpace space, int slotLength, int slotsPerSlab, int maxEmptySlabs) {
+		if (space == null) {
+			throw new IllegalArgumentException("space must not be null");
+		}
+		if (slotLength <= 0 || slotsPerSlab <= 0 || maxEmptySlabs < 0) {
+			throw new IllegalArgumentException("slotLength and slotsPerSlab must be positive");
+		}
+		this.space = space;
+		this.slotLength = slotLength;
+		this.slotsPerSlab = slotsPerSlab;
+		this.maxEmptySlabs = maxEmptySlabs;
+		this.partial = new SlabList();
+		this.full = new SlabList();
+		this.empty = new SlabList();
+		this.slabs = new TreeMap<Integer, Slab>();
+	}
+
+	/**
+	 * Gets the length of the slots of this allocator.
+	 *
+	 * @return the slot length, in words
+	 */
+	public int getSlotLength() {
+		return slotLength;
+	}
+
+	/**
+	 * Allocates one slot.
+	 *
+	 * @return the base address of the allocated slot, or -1 if a new slab was
+	 *         needed and the memory space could not allocate it
+	 */
+	public int malloc() {
+		Slab slab = partial.first;
+		if (slab == null) {
+			slab = empty.first;
+			if (slab == null) {
+				int address = space.malloc(slotLength * slotsPerSlab);
+				if (address == -1) {
+					return -1;
+				}
+				slab = new Slab(address, slotsPerSlab);
+				slabs.put(address, slab);
+				empty.add(slab);
+			}
+		}
+		int slot = takeFreeSlot(slab);
+		if (slab.used == 1) {
+			slab.list.remove(slab);
+			partial.add(slab);
+		}
+		if (slab.used == slotsPerSlab) {
+			slab.list.remove(slab);
+			full.add(slab);
+		}
+		return slab.baseAddress + slot * slotLength;
+	}
+
+	/**
+	 * Frees the slot whose base address equals the given address.
+	 *
+	 * @param address
+	 *        the base address of the slot to free
+	 * @throws IllegalArgumentException
+	 *         if the address is not the address of an allocated slot of this allocator
+	 */
+	public void free(int address) {
+		Map.Entry<Integer, Slab> entry = slabs.floorEntry(address);
+		if (entry == null) {
+			throw new IllegalArgumentException("address is not a slot of this allocator");
+		}
+		Slab slab = entry.getValue();
+		int offset = address - slab.baseAddress;
+		int slot = offset / slotLength;
+		if (offset % slotLength != 0 || slot >= slotsPerSlab
+				|| (slab.bitmap[slot >>> 6] & (1L << slot)) == 0) {
+			throw new IllegalArgumentException("address is not a slot of this allocator");
+		}
+		slab.bitmap[slot >>> 6] &= ~(1L << slot);
+		slab.hint = slot >>> 6;
+		slab.used--;
+		if (slab.used == slotsPerSlab - 1) {
+			slab.list.remove(slab);
+			partial.add(slab);
+		}
+		if (slab.used == 0) {
+			slab.list.remove(slab);
+			if (empty.size < maxEmptySlabs) {
+				empty.add(slab);
+			} else {
+				slabs.remove(slab.baseAddress);
+				space.free(slab.baseAddress);
+			}
+		}
+	}
+
+	/**
+	 * Frees all the empty slabs back to the memory space.
+	 *
+	 * @return the number of slabs that were freed
+	 */
+	public int releaseEmptySlabs() {
+		int count = 0;
+		while (empty.first != null) {
+			Slab slab = empty.first;
+			empty.remove(slab);
+			slabs.remove(slab.baseAddress);
+			space.free(slab.baseAddress);
+			count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Gets the number of partial slabs.
+	 *
+	 * @return the number of slabs that have both free and allocated slots
+	 */
+	public int getPartialSlabCount() {
+		return partial.size;
+	}
+
+	/**
+	 * Gets the number of full slabs.
+	 *
+	 * @return the number of slabs that have no free slots
+	 */
+	public int getFullSlabCount() {
+		return full.size;
+	}
+
+	/**
+	 * Gets the number of empty slabs.
+	 *
+	 * @return the number of slabs that are kept with no allocated slots
+	 */
+	public int getEmptySlabCount() {
+		return empty.size;
+	}
+
+	/** Marks a free slot of the given (not full) slab as allocated, and returns its index. */
+	private int takeFreeSlot(Slab slab) {
+		long[] bitmap = slab.bitmap;
+		int word = slab.hint;
+		while (~bitmap[word] == 0) {
+			word = (word + 1) % bitmap.length;
+		}
+		int slot = (word << 6) + Long.numberOfTrailingZeros(~bitmap[word]);
+		// the unused bits of the last word are never set, so skip past them
+		if (slot >= slotsPerSlab) {
+			word = 0;
+			while (~bitmap[word] == 0) {
+				word++;
+			}
+			slot = (word << 6) + Long.numberOfTrailingZeros(~bitmap[word]);
+		}
+		bitmap[word] |= 1L << slot;
+		slab.hint = word;
+		slab.used++;
+		return slot;
+	}
+
+	/**
+	 * A textual representation of this allocator, for debugging.
+	 */
+	public String toString() {
+		return "slabs: " + partial.size + " partial, " + full.size + " full, "
+				+ empty.size + " empty";
+	}
+}
@@ -1,3 +1,26 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntConsumer;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
 public class TestMemorySpace {
 
     public static void main(String[] args) {
@@ -12,6 +35,30 @@ public class TestMemorySpace {
         testFree();
         testDefrag();
         testComplexScenario();
+        testFastBins();
+        testLifetimeRegions();
+        testParallelDefrag();
+        testCompaction();
+        testIncrementalDefrag();
+        testBackgroundDefragmenter();
+        testDefragOnFailure();
+        testAdaptiveDefrag();
+        testStatistics();
+        testLatencyHistograms();
+        testFlightRecorderEvents();
+        testMonitor();
+        testHopCounting();
+        testTraceRecorder();
+        testTraceReplay();
+        testWorkloadGenerator();
+        testConcurrentLinkedList();
+        testThreadArena();
+        testSlabAllocator();
+        testMagazineCache();
+        testHoardAllocator();
+        testPagedMemorySpace();
+        testExtentDecay();
+        testGenerationalMemorySpace();
 
         System.out.println("All tests completed successfully!");
     }
@@ -98,12 +145,990 @@ public class TestMemorySpace {
         assertString(expected, memory.toString(), "Complex scenario state");
     }
 
+    private static void testFastBins() {
+        MemorySpace memory = new MemorySpace(100);
+        memory.setFastBins(8, 10);
+        int addr1 = memory.malloc(4);
+        int addr2 = memory.malloc(4);
+        memory.malloc(50);
+
+        memory.free(addr1);
+        memory.free(addr2);
+        assertEqual(addr2, memory.malloc(4), "Fast bin reuse is LIFO");
+
+        // 42 free words are left at the end, and 4 more are in the fast bins
+        int addr4 = memory.malloc(46);
+        assertEqual(-1, addr4, "Fast bins do not merge with the end of the space");
+        memory.free(addr2);
+        memory.defrag();
+        String expected = "(0 , 8) (58 , 42)\n(8 , 50)\n";
+        assertString(expected, memory.toString(), "Fast bins after defrag");
+
+        MemorySpace invalid = new MemorySpace(100);
+        invalid.setFastBins(8, 10);
+        try {
+            invalid.free(invalid.malloc(-1));
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new AssertionError("Fast bins were indexed with a negative length");
+        }
+    }
+
+    private static void testLifetimeRegions() {
+        MemorySpace memory = new MemorySpace(100, 30, 10);
+        int shortAddr = memory.malloc(10, Lifetime.SHORT);
+        int longAddr = memory.malloc(10, Lifetime.LONG);
+        int permanentAddr = memory.malloc(10, Lifetime.PERMANENT);
+        assertEqual(0, shortAddr, "Short-lived region");
+        assertEqual(60, longAddr, "Long-lived region");
+        assertEqual(90, permanentAddr, "Permanent region");
+
+        memory.free(shortAddr);
+        memory.free(longAddr);
+        memory.defrag();
+        String expected = "(0 , 60) (60 , 30)\n(90 , 10)\n";
+        assertString(expected, memory.toString(), "Regions are not merged");
+    }
+
+    private static void testParallelDefrag() {
+        // 6000 blocks of 1 word in three regions, about 4200 of them free, so
+        // that the ranges of 1024 blocks have seams, some of them at region
+        // boundaries, where free blocks must not be merged
+        MemorySpace sequential = new MemorySpace(6000, 2000, 1000);
+        MemorySpace parallel = new MemorySpace(6000, 2000, 1000);
+        Random random = new Random(1);
+        for (MemorySpace memory : new MemorySpace[] { sequential, parallel }) {
+            for (Lifetime lifetime : new Lifetime[] { Lifetime.SHORT, Lifetime.LONG, Lifetime.PERMANENT }) {
+                while (memory.malloc(1, lifetime) != -1) {
+                    // fills the region
+                }
+            }
+        }
+        for (int address = 0; address < 6000; address++) {
+            boolean boundary = address % 1000 == 999 || address % 1000 == 0;
+            if (boundary || random.nextInt(10) < 7) {
+                sequential.free(address);
+                parallel.free(address);
+            }
+        }
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            sequential.defrag();
+            parallel.parallelDefrag(pool);
+        } finally {
+            pool.shutdown();
+        }
+        assertEqual(sequential.getFreeBlockCount(), parallel.getFreeBlockCount(), "Parallel defrag free blocks");
+        assertString(sequential.toString(), parallel.toString(), "Parallel defrag state");
+    }
+
+    private static void testCompaction() {
+        MemorySpace memory = new MemorySpace(100);
+        int h1 = memory.mallocHandle(20);
+        int h2 = memory.mallocHandle(20);
+        int pinned = memory.malloc(10);
+        int h3 = memory.mallocHandle(20);
+        int h4 = memory.mallocHandle(20);
+        memory.freeHandle(h1);
+        memory.freeHandle(h3);
+
+        CompactionResult result = memory.compact();
+        assertEqual(0, memory.getAddress(h2), "Handle block slides down");
+        assertEqual(40, pinned, "Pinned block stays");
+        assertEqual(50, memory.getAddress(h4), "Handle block slides to the pinned block");
+        assertEqual(20, result.getLargestFreeBefore(), "Largest free block before");
+        assertEqual(30, result.getLargestFreeAfter(), "Largest free block after");
+        String expected = "(20 , 20) (70 , 30)\n(0 , 20) (40 , 10) (50 , 20)\n";
+        assertString(expected, memory.toString(), "Compacted state");
+
+        // adjacent free blocks count as one hole, without a defrag being made
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            MemorySpace adjacent = new MemorySpace(100);
+            try (AllocationTraceRecorder recorder = new AllocationTraceRecorder(bytes, 100, 16)) {
+                adjacent.setTraceRecorder(recorder);
+                int a = adjacent.mallocHandle(30);
+                int b = adjacent.mallocHandle(30);
+                adjacent.malloc(40);
+                adjacent.freeHandle(a);
+                adjacent.freeHandle(b);
+                assertEqual(60, adjacent.compact().getLargestFreeBefore(), "Largest hole before");
+                adjacent.setTraceRecorder(null);
+            }
+            AllocationTrace.Reader trace = new AllocationTrace.Reader(new ByteArrayInputStream(bytes.toByteArray()));
+            while (trace.next()) {
+                if (trace.getOp() == AllocationTrace.DEFRAG) {
+                    throw new AssertionError("Compaction recorded a defrag");
+                }
+            }
+        } catch (IOException e) {
+            throw new AssertionError("Tracing failed: " + e);
+        }
+
+        // a handle block freed by address releases its handle, so that the
+        // plain block that reuses the same space stays pinned
+        MemorySpace reused = new MemorySpace(30);
+        reused.malloc(10);
+        int h = reused.mallocHandle(10);
+        reused.malloc(10);
+        reused.free(reused.getAddress(h));
+        assertRejected(() -> reused.getAddress(h), "Handle of a block freed by address");
+        int plain = reused.malloc(10);
+        assertEqual(10, plain, "Exact fit reuses the freed handle block");
+        reused.free(0);
+        reused.compact();
+        assertString("(0 , 10)\n(10 , 10) (20 , 10)\n", reused.toString(), "Plain block stays pinned");
+    }
+
+    private static void testIncrementalDefrag() {
+        MemorySpace memory = new MemorySpace(100);
+        int[] addresses = new int[10];
+        for (int i = 0; i < addresses.length; i++) {
+            addresses[i] = memory.malloc(10);
+        }
+        for (int i = addresses.length - 1; i >= 0; i--) {
+            memory.free(addresses[i]);
+        }
+        int steps = 1;
+        while (!memory.defragStep(5, 0)) {
+            if (steps == 3) {
+                memory.free(memory.malloc(5));
+            }
+            steps++;
+        }
+        if (steps < 2) {
+            throw new AssertionError("Incremental defrag: expected several steps but took " + steps);
+        }
+        assertString("(0 , 100)\n", memory.toString(), "Incremental defrag");
+
+        // 2000 free blocks of 2 words, in 1000 mergeable pairs, and a malloc
+        // and a free between every two steps of 64 nodes
+        memory = new MemorySpace(6000);
+        addresses = new int[3000];
+        for (int i = 0; i < addresses.length; i++) {
+            addresses[i] = memory.malloc(2);
+        }
+        for (int i = addresses.length - 1; i >= 0; i--) {
+            if (i % 3 != 2) {
+                memory.free(addresses[i]);
+            }
+        }
+        steps = 1;
+        while (!memory.defragStep(64, 0)) {
+            memory.free(memory.malloc(2));
+            steps++;
+            if (steps > 200) {
+                throw new AssertionError("Incremental defrag under traffic: no pass completed in 200 steps");
+            }
+        }
+        if (memory.getFreeBlockCount() > 1100) {
+            throw new AssertionError("Incremental defrag under traffic: "
+                    + memory.getFreeBlockCount() + " free blocks left of 2000");
+        }
+    }
+
+    private static void testBackgroundDefragmenter() {
+        assertRejected(() -> new BackgroundDefragmenter(new MemorySpace(100), 64, -1),
+                "Background defragmenter with a negative interval");
+
+        // 2000 free blocks of 2 words, in 1000 mergeable pairs, followed by
+        // 1000 free words that a mutator keeps allocating from and freeing
+        // while the passes run
+        MemorySpace memory = new MemorySpace(7000);
+        int[] addresses = new int[3000];
+        for (int i = 0; i < addresses.length; i++) {
+            addresses[i] = memory.malloc(2);
+        }
+        for (int i = addresses.length - 1; i >= 0; i--) {
+            if (i % 3 != 2) {
+                memory.free(addresses[i]);
+            }
+        }
+        BackgroundDefragmenter defragmenter = new BackgroundDefragmenter(memory, 64, 0);
+        defragmenter.start();
+        long deadline = System.nanoTime() + 10000000000L;
+        runThreads(1, t -> {
+            while (defragmenter.getPassCount() < 2 && System.nanoTime() < deadline) {
+                defragmenter.free(defragmenter.malloc(50));
+            }
+        });
+        defragmenter.close();
+        if (defragmenter.getPassCount() < 2) {
+            throw new AssertionError("Background defragmenter: no pass completed under traffic in 10 seconds");
+        }
+        if (memory.getFreeBlockCount() > 1100) {
+            throw new AssertionError("Background defragmenter: "
+                    + memory.getFreeBlockCount() + " free blocks left of 2001");
+        }
+    }
+
+    private static void testDefragOnFailure() {
+        MemorySpace memory = new MemorySpace(100);
+        int addr1 = memory.malloc(30);
+        int addr2 = memory.malloc(30);
+        int addr3 = memory.malloc(40);
+        memory.free(addr1);
+        memory.free(addr2);
+        memory.free(addr3);
+        assertEqual(-1, memory.malloc(60), "No defrag on failure by default");
+
+        memory.setDefragPolicy(DefragPolicy.TARGETED);
+        assertEqual(0, memory.malloc(60), "Targeted defrag on failure");
+        String expected = "(60 , 40)\n(0 , 60)\n";
+        assertString(expected, memory.toString(), "After targeted defrag");
+    }
+
+    private static void testAdaptiveDefrag() {
+        MemorySpace memory = new MemorySpace(100);
+        int[] addrs = new int[10];
+        for (int i = 0; i < 10; i++) {
+            addrs[i] = memory.malloc(10);
+        }
+        memory.free(addrs[0]);
+        memory.free(addrs[2]);
+        memory.free(addrs[3]);
+        assertEqual(30, (int) memory.getFreeWords(), "Free words");
+        assertEqual(3, memory.getFreeBlockCount(), "Free block count");
+        assertEqual(10, memory.getLargestFreeBlock(), "Largest free block");
+
+        memory.setAutoDefrag(0.5, 100, 1000);
+        memory.free(addrs[4]);
+        assertEqual(40, (int) memory.getFreeWords(), "Free words after auto defrag");
+        assertEqual(2, memory.getFreeBlockCount(), "Free block count after auto defrag");
+        assertEqual(30, memory.getLargestFreeBlock(), "Largest free block after auto defrag");
+
+        memory.setAutoDefrag(0.6, 100, 1000);
+        memory.free(addrs[1]);
+        assertEqual(3, memory.getFreeBlockCount(), "No auto defrag below the thresholds");
+        memory.onIdle();
+        assertEqual(1, memory.getFreeBlockCount(), "Auto defrag when idle");
+        assertEqual(50, memory.getLargestFreeBlock(), "Largest free block when idle");
+
+        // steady random traffic: the passes of 64 nodes per free must keep up
+        // with a freeList of hundreds of blocks
+        memory = new MemorySpace(1 << 18);
+        memory.setAutoDefrag(0.5, 500, 64);
+        Random random = new Random(1);
+        ArrayList<Integer> live = new ArrayList<Integer>();
+        int maxBlocks = 0;
+        for (int i = 0; i < 20000; i++) {
+            if (random.nextBoolean()) {
+                int address = memory.malloc(1 + random.nextInt(64));
+                if (address != -1) {
+                    live.add(address);
+                }
+            } else if (!live.isEmpty()) {
+                int j = random.nextInt(live.size());
+                memory.free(live.get(j));
+                live.set(j, live.get(live.size() - 1));
+                live.remove(live.size() - 1);
+            }
+            maxBlocks = Math.max(maxBlocks, memory.getFreeBlockCount());
+        }
+        if (maxBlocks > 1000) {
+            throw new AssertionError("Auto defrag under traffic: " + maxBlocks + " free blocks");
+        }
+    }
+
+    private static void testStatistics() {
+        MemorySpace memory = new MemorySpace(100);
+        int addr1 = memory.malloc(20);
+        int addr2 = memory.malloc(30);
+        memory.malloc(40);
+        assertEqual(-1, memory.malloc(20), "Malloc failure");
+        memory.free(addr1);
+        memory.free(addr2);
+        assertEqual(4, (int) memory.getMallocCount(), "Malloc count");
+        assertEqual(1, (int) memory.getFailedMallocCount(), "Failed malloc count");
+        assertEqual(2, (int) memory.getFreeCount(), "Free count");
+        assertEqual(40, (int) memory.getAllocatedWords(), "Allocated words");
+        assertEqual(1, memory.getAllocatedBlockCount(), "Allocated block count");
+        assertEqual(60, (int) memory.getFreeWords(), "Free words");
+        assertEqual(3, memory.getFreeBlockCount(), "Free block count");
+        assertEqual(30, memory.getLargestFreeBlock(), "Largest free block");
+    }
+
+    private static void testLatencyHistograms() {
+        MemorySpace memory = new MemorySpace(100);
+        if (memory.getMallocLatency() != null) {
+            throw new AssertionError("Latencies are recorded by default");
+        }
+        memory.setLatencyRecording(true);
+        int addr1 = memory.malloc(10);
+        memory.malloc(10);
+        memory.free(addr1);
+        memory.defrag();
+        assertEqual(2, (int) memory.getMallocLatency().snapshot().getCount(), "Malloc latencies");
+        assertEqual(1, (int) memory.getFreeLatency().snapshot().getCount(), "Free latencies");
+        assertEqual(1, (int) memory.getDefragLatency().snapshot().getCount(), "Defrag latencies");
+
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertNear(500000, snapshot.getValueAtPercentile(50), "Median latency");
+        assertNear(990000, snapshot.getValueAtPercentile(99), "p99 latency");
+        assertNear(1000000, snapshot.getMax(), "Max latency");
+    }
+
+    private static void testFlightRecorderEvents() {
+        List<RecordedEvent> events;
+        try (Recording recording = new Recording()) {
+            recording.enable("MemorySpace.Malloc").withThreshold(Duration.ZERO);
+            recording.enable("MemorySpace.MallocFailed");
+            recording.enable("MemorySpace.Free").withThreshold(Duration.ZERO);
+            recording.enable("MemorySpace.Defrag").withThreshold(Duration.ZERO);
+            recording.start();
+            MemorySpace memory = new MemorySpace(100);
+            int addr1 = memory.malloc(60);
+            memory.malloc(40);
+            memory.free(addr1);
+            memory.malloc(70);
+            memory.defrag();
+            recording.stop();
+            Path file = Files.createTempFile("memory-space", ".jfr");
+            recording.dump(file);
+            events = RecordingFile.readAllEvents(file);
+            Files.delete(file);
+        } catch (IOException e) {
+            throw new AssertionError("Flight recording failed: " + e);
+        }
+        int mallocs = 0;
+        int failures = 0;
+        int frees = 0;
+        int defrags = 0;
+        for (RecordedEvent event : events) {
+            String name = event.getEventType().getName();
+            if (name.equals("MemorySpace.Malloc")) {
+                mallocs++;
+            } else if (name.equals("MemorySpace.MallocFailed")) {
+                failures++;
+                assertEqual(70, event.getInt("requestedLength"), "Failed malloc length");
+            } else if (name.equals("MemorySpace.Free")) {
+                frees++;
+                assertEqual(60, event.getInt("length"), "Freed length");
+            } else if (name.equals("MemorySpace.Defrag")) {
+                defrags++;
+            }
+        }
+        assertEqual(2, mallocs, "Malloc events");
+        assertEqual(1, failures, "Failed malloc events");
+        assertEqual(1, frees, "Free events");
+        assertEqual(1, defrags, "Defrag events");
+    }
+
+    private static void testMonitor() {
+        MemorySpace memory = new MemorySpace(100);
+        int addr1 = memory.malloc(30);
+        int addr2 = memory.malloc(30);
+        memory.free(addr1);
+        memory.free(addr2);
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try (MemorySpaceMonitor monitor = new MemorySpaceMonitor(memory, "test")) {
+            ObjectName name = monitor.getObjectName();
+            assertEqual(100, ((Long) server.getAttribute(name, "FreeWords")).intValue(), "Free words attribute");
+            assertEqual(3, (Integer) server.getAttribute(name, "FreeBlockCount"), "Free block count attribute");
+            assertEqual(2, ((Long) server.getAttribute(name, "MallocCount")).intValue(), "Malloc count attribute");
+            server.invoke(name, "defrag", null, null);
+            assertEqual(1, (Integer) server.getAttribute(name, "FreeBlockCount"), "Free block count after defrag");
+            server.invoke(name, "resetCounters", null, null);
+            assertEqual(0, ((Long) server.getAttribute(name, "MallocCount")).intValue(), "Malloc count after reset");
+
+            // freeing the last block walks the allocatedList, and malloc(20)
+            // scans past the blocks of 10 words
+            memory.setHopCounting(true);
+            for (int i = 0; i < 3; i++) {
+                memory.malloc(10);
+            }
+            memory.free(20);
+            memory.free(0);
+            memory.malloc(20);
+            long listHops = 0;
+            for (ListOperation op : ListOperation.values()) {
+                listHops += memory.getListHops(op);
+            }
+            if (listHops == 0 || memory.getHopsPerMalloc() == 0) {
+                throw new AssertionError("Monitor test: no hops were counted");
+            }
+            if ((Double) server.getAttribute(name, "HopsPerMalloc") != memory.getHopsPerMalloc()) {
+                throw new AssertionError("Hops per malloc attribute: " + server.getAttribute(name, "HopsPerMalloc"));
+            }
+            assertEqual((int) listHops, ((Long) server.getAttribute(name, "ListHops")).intValue(), "List hops attribute");
+            server.invoke(name, "resetCounters", null, null);
+            assertEqual(0, ((Long) server.getAttribute(name, "ListHops")).intValue(), "List hops after reset");
+            assertEqual(0, (int) Math.round((Double) server.getAttribute(name, "HopsPerMalloc")),
+                    "Hops per malloc after reset");
+        } catch (JMException e) {
+            throw new AssertionError("JMX access failed: " + e);
+        }
+        if (!server.queryNames(null, null).stream().noneMatch(n -> n.getDomain().equals("MemorySpace"))) {
+            throw new AssertionError("The monitor is still registered after close");
+        }
+    }
+
+    private static void testHopCounting() {
+        LinkedList list = new LinkedList();
+        for (int i = 0; i < 10; i++) {
+            list.addLast(new MemoryBlock(i * 10, 10));
+        }
+        list.setHopCounting(true);
+        list.getNode(5);
+        list.indexOf(new MemoryBlock(30, 10));
+        list.remove(new MemoryBlock(90, 10));
+        assertEqual(5, (int) list.getHops(ListOperation.GET_NODE), "getNode hops");
+        assertEqual(3, (int) list.getHops(ListOperation.INDEX_OF), "indexOf hops");
+        assertEqual(17, (int) list.getHops(ListOperation.REMOVE_BLOCK), "remove(block) hops");
+        assertEqual(0, (int) list.getHops(ListOperation.REMOVE_INDEX), "remove(index) hops");
+        assertEqual(25, (int) list.getTotalHops(), "Total hops");
+
+        MemorySpace memory = new MemorySpace(100);
+        int addr1 = memory.malloc(5);
+        int addr2 = memory.malloc(10);
+        int addr3 = memory.malloc(20);
+        memory.malloc(65);
+        memory.free(addr1);
+        memory.free(addr2);
+        memory.free(addr3);
+        memory.setHopCounting(true);
+        memory.malloc(20);
+        // first fit visits the three free blocks, and removing the last one
+        // takes 2 hops to find it and 1 hop to unlink it
+        assertEqual(3 + 3, (int) memory.getHopsPerMalloc(), "Hops per malloc");
+        assertEqual(3, (int) memory.getListHops(ListOperation.REMOVE_BLOCK), "Hops of remove(block)");
+    }
+
+    private static void testTraceRecorder() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            MemorySpace memory = new MemorySpace(100);
+            try (AllocationTraceRecorder recorder = new AllocationTraceRecorder(bytes, 100, 4)) {
+                memory.setTraceRecorder(recorder);
+                for (int i = 0; i < 10; i++) {
+                    memory.free(memory.malloc(10));
+                }
+                memory.malloc(200);
+                memory.defrag();
+                memory.setTraceRecorder(null);
+            }
+            InputStream in = new ByteArrayInputStream(bytes.toByteArray());
+            int magic = in.read() << 24 | in.read() << 16 | in.read() << 8 | in.read();
+            assertEqual(AllocationTrace.MAGIC, magic, "Trace magic");
+            assertEqual(AllocationTrace.VERSION, in.read(), "Trace version");
+            assertEqual(100, (int) AllocationTrace.readVarint(in), "Trace maxSize");
+            int[] counts = new int[4];
+            int op;
+            while ((op = in.read()) != -1) {
+                counts[op]++;
+                AllocationTrace.readVarint(in);
+                if (op == AllocationTrace.MALLOC) {
+                    int length = (int) AllocationTrace.readVarint(in);
+                    int address = (int) AllocationTrace.readVarint(in) - 1;
+                    if (length == 200) {
+                        assertEqual(-1, address, "Traced failed malloc");
+                    }
+                } else if (op == AllocationTrace.FREE) {
+                    AllocationTrace.readVarint(in);
+                }
+            }
+            assertEqual(11, counts[AllocationTrace.MALLOC], "Traced mallocs");
+            assertEqual(10, counts[AllocationTrace.FREE], "Traced frees");
+            assertEqual(1, counts[AllocationTrace.DEFRAG], "Traced defrags");
+
+            // a recorder closed while still attached no longer records, and
+            // does not break malloc and free
+            AllocationTraceRecorder closed = new AllocationTraceRecorder(bytes, 100, 4);
+            closed.close();
+            int traced = bytes.size();
+            MemorySpace attached = new MemorySpace(100);
+            attached.setTraceRecorder(closed);
+            int address = attached.malloc(10);
+            assertEqual(0, address, "Malloc with a closed recorder");
+            attached.free(address);
+            assertEqual(1, (int) attached.getMallocCount(), "Mallocs counted with a closed recorder");
+            assertEqual(traced, bytes.size(), "Trace after the recorder was closed");
+        } catch (IOException e) {
+            throw new AssertionError("Tracing failed: " + e);
+        }
+    }
+
+    private static void testTraceReplay() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            // records the scenario of LinkedListTest
+            MemorySpace memory = new MemorySpace(1000);
+            try (AllocationTraceRecorder recorder = new AllocationTraceRecorder(bytes, 1000, 64)) {
+                memory.setTraceRecorder(recorder);
+                int[] addresses = new int[20];
+                for (int i = 0; i < addresses.length; i++) {
+                    addresses[i] = memory.malloc((int) Math.pow(i + 2, 5) % 123);
+                }
+                for (int i = 0; i < addresses.length; i += 2) {
+                    memory.free(addresses[i]);
+                }
+                memory.free(addresses[1]);
+                memory.free(addresses[3]);
+                memory.defrag();
+                memory.setTraceRecorder(null);
+            }
+            AllocationTrace.Reader trace = new AllocationTrace.Reader(new ByteArrayInputStream(bytes.toByteArray()));
+            assertEqual(1000, trace.getMaxSize(), "Replayed maxSize");
+            MemorySpace replayed = new MemorySpace(trace.getMaxSize());
+            TraceReplay.Report report = new TraceReplay(replayed).replay(trace);
+            assertEqual(33, (int) report.getOperationCount(), "Replayed operations");
+            assertEqual(0, (int) report.getFailedMallocCount(), "Replayed failed mallocs");
+            assertEqual(959, (int) report.getPeakLiveWords(), "Replayed peak live words");
+            assertString(memory.toString(), replayed.toString(), "Replayed memory space");
+        } catch (IOException e) {
+            throw new AssertionError("Replay failed: " + e);
+        }
+    }
+
+    private static void testWorkloadGenerator() {
+        WorkloadGenerator powers = new WorkloadGenerator(1, SizeDistribution.POWER_MOD, LifetimeDistribution.PHASED, 1, 1, 20);
+        for (int i = 0; i < 20; i++) {
+            assertEqual(AllocationTrace.MALLOC, powers.next(), "Phased mallocs");
+            assertEqual((int) Math.pow(i + 2, 5) % 123, powers.getLength(), "LinkedListTest lengths");
+        }
+        assertEqual(AllocationTrace.FREE, powers.next(), "Phased frees");
+
+        for (LifetimeDistribution lifetimes : LifetimeDistribution.values()) {
+            WorkloadGenerator first = new WorkloadGenerator(7, SizeDistribution.ZIPF, lifetimes, 1, 64, 100);
+            WorkloadGenerator second = new WorkloadGenerator(7, SizeDistribution.ZIPF, lifetimes, 1, 64, 100);
+            int maxLive = 0;
+            for (int i = 0; i < 100000; i++) {
+                assertEqual(first.next(), second.next(), "Seeded ops");
+                assertEqual(first.getLength(), second.getLength(), "Seeded lengths");
+                assertEqual(first.getSlot(), second.getSlot(), "Seeded slots");
+                maxLive = Math.max(maxLive, first.getLiveCount());
+            }
+            if (maxLive < 50 || maxLive > 2000) {
+                throw new AssertionError(lifetimes + ": live blocks went up to " + maxLive);
+            }
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            new WorkloadGenerator(3, SizeDistribution.BIMODAL, LifetimeDistribution.EXPONENTIAL, 1, 64, 100)
+                    .writeTrace(bytes, 100000, 10000);
+            AllocationTrace.Reader trace = new AllocationTrace.Reader(new ByteArrayInputStream(bytes.toByteArray()));
+            TraceReplay.Report report = new TraceReplay(new MemorySpace(trace.getMaxSize())).replay(trace);
+            assertEqual(10000, (int) report.getOperationCount(), "Generated operations replayed");
+            assertEqual(0, (int) report.getFailedMallocCount(), "Generated mallocs failed");
+        } catch (IOException e) {
+            throw new AssertionError("Generated trace failed: " + e);
+        }
+    }
+
+    private static void testConcurrentLinkedList() {
+        ConcurrentLinkedList list = new ConcurrentLinkedList();
+        list.add(new MemoryBlock(20, 10));
+        list.add(new MemoryBlock(0, 10));
+        list.add(new MemoryBlock(10, 10));
+        if (list.add(new MemoryBlock(10, 5))) {
+            throw new AssertionError("Concurrent list: a base address was added twice");
+        }
+        assertString("(0 , 10) (10 , 10) (20 , 10)", list.toString(), "Concurrent list order");
+        assertEqual(2, list.indexOf(new MemoryBlock(20, 10)), "Concurrent list indexOf");
+        if (!list.remove(new MemoryBlock(10, 10)) || list.remove(new MemoryBlock(10, 10))) {
+            throw new AssertionError("Concurrent list: a block was not removed exactly once");
+        }
+        assertEqual(1, list.indexOf(new MemoryBlock(20, 10)), "Concurrent list indexOf after remove");
+        assertEqual(-1, list.indexOf(new MemoryBlock(10, 10)), "Concurrent list indexOf of a removed block");
+
+        // each thread adds interleaved blocks, and removes every other one of
+        // its blocks; the blocks at multiples of 100 are removed by all threads
+        ConcurrentLinkedList shared = new ConcurrentLinkedList();
+        int threads = 4;
+        int perThread = 2000;
+        int[] removed = new int[threads];
+        runThreads(threads, t -> {
+            for (int i = 0; i < perThread; i++) {
+                shared.add(new MemoryBlock(i * threads + t, 1));
+            }
+            for (int i = 0; i < perThread; i += 2) {
+                if (shared.remove(new MemoryBlock(i * threads + t, 1))) {
+                    removed[t]++;
+                }
+            }
+            for (int i = 0; i < perThread * threads; i += 100) {
+                if (shared.remove(new MemoryBlock(i + 1, 1))) {
+                    removed[t]++;
+                }
+            }
+        });
+        StringBuilder expected = new StringBuilder();
+        int size = 0;
+        for (int address = 0; address < perThread * threads; address++) {
+            boolean even = (address / threads) % 2 == 0;
+            if (!even && address % 100 != 1) {
+                expected.append("(" + address + " , 1) ");
+                size++;
+            }
+        }
+        assertEqual(size, shared.getSize(), "Concurrent list size");
+        assertEqual(perThread * threads - size, removed[0] + removed[1] + removed[2] + removed[3],
+                "Concurrent removes that succeeded");
+        assertString(expected.toString(), shared.toString(), "Concurrent list contents");
+    }
+
+    private static void testThreadArena() {
+        ThreadArena arena = new ThreadArena(100);
+        int addr1 = arena.malloc(10);
+        int addr2 = arena.malloc(10);
+        int addr3 = arena.malloc(10);
+        boolean[] rejected = { false };
+        runThreads(1, t -> {
+            arena.free(addr3);
+            arena.free(addr1);
+            arena.free(addr2);
+            try {
+                arena.malloc(10);
+            } catch (IllegalStateException e) {
+                rejected[0] = true;
+            }
+        });
+        if (!rejected[0]) {
+            throw new AssertionError("Thread arena: a non-owner malloc was allowed");
+        }
+        String queued = "(30 , 70)\n(0 , 10) (10 , 10) (20 , 10)\n";
+        assertString(queued, arena.toString(), "Remote frees are queued");
+        assertEqual(3, arena.drainRemoteFrees(), "Drained remote frees");
+        // the freed blocks are appended to the freeList in the order of the frees
+        assertExact("(30 , 70) (20 , 10) (0 , 10) (10 , 10) ", arena.toString().split("\n")[0],
+                "Remote frees are applied in FIFO order");
+
+        int addr4 = arena.malloc(60);
+        runThreads(1, t -> arena.free(addr4));
+        assertEqual(30, arena.malloc(60), "Owner malloc drains remote frees first");
+    }
+
+    private static void testSlabAllocator() {
+        MemorySpace memory = new MemorySpace(1000);
+        // 70 slots of 2 words: the bitmap of a slab takes two words
+        SlabAllocator slabs = new SlabAllocator(memory, 2, 70, 1);
+        for (int i = 0; i < 70; i++) {
+            assertEqual(2 * i, slabs.malloc(), "Slot of the first slab");
+        }
+        assertEqual(1, slabs.getFullSlabCount(), "Full slabs");
+        assertEqual(0, slabs.getPartialSlabCount(), "Partial slabs of a full allocator");
+        assertEqual(140, slabs.malloc(), "First slot of a new slab");
+        assertEqual(1, slabs.getPartialSlabCount(), "Partial slabs");
+
+        slabs.free(130);
+        assertEqual(0, slabs.getFullSlabCount(), "Full slab becomes partial");
+        assertEqual(2, slabs.getPartialSlabCount(), "Partial slabs after a free");
+        assertEqual(130, slabs.malloc(), "Free slot in the second bitmap word");
+        assertEqual(1, slabs.getFullSlabCount(), "Partial slab becomes full");
+        slabs.free(2);
+        assertEqual(2, slabs.malloc(), "Free slot in the first bitmap word");
+
+        assertRejected(() -> slabs.free(3), "Misaligned slot");
+        assertRejected(() -> slabs.free(-1), "Address before the slabs");
+        assertRejected(() -> slabs.free(500), "Address after the slabs");
+        assertRejected(() -> slabs.free(142), "Free slot");
+        slabs.free(4);
+        assertRejected(() -> slabs.free(4), "Double free");
+
+        // the first empty slab is kept, the next one goes back to the memory space
+        slabs.free(140);
+        assertEqual(1, slabs.getEmptySlabCount(), "Kept empty slabs");
+        for (int i = 0; i < 70; i++) {
+            if (i != 2) {
+                slabs.free(2 * i);
+            }
+        }
+        assertEqual(1, slabs.getEmptySlabCount(), "Empty slabs beyond maxEmptySlabs");
+        assertEqual(1, memory.getAllocatedBlockCount(), "Slabs left in the memory space");
+        assertEqual(140, slabs.malloc(), "Empty slab is reused");
+        slabs.free(140);
+        assertEqual(1, slabs.releaseEmptySlabs(), "Released empty slabs");
+        assertEqual(0, memory.getAllocatedBlockCount(), "Slabs left after release");
+
+        SlabAllocator tooLarge = new SlabAllocator(new MemorySpace(100), 2, 70);
+        assertEqual(-1, tooLarge.malloc(), "Slab larger than the memory space");
+    }
+
+    private static void testMagazineCache() {
+        MemorySpace memory = new MemorySpace(1000);
+        MagazineCache cache = new MagazineCache(memory, 10, 4);
+        // a magazine is filled in one batch, and popped in LIFO order
+        assertEqual(30, cache.malloc(), "First round");
+        assertEqual(20, cache.malloc(), "Second round");
+        assertEqual(10, cache.malloc(), "Third round");
+        assertEqual(0, cache.malloc(), "Fourth round");
+        assertEqual(70, cache.malloc(), "Round of a second magazine");
+        assertEqual(8, memory.getAllocatedBlockCount(), "Blocks taken from the memory space");
+
+        cache.free(0);  // fills the loaded magazine
+        cache.free(10); // swaps in the empty previous magazine
+        assertEqual(10, cache.malloc(), "Round of the swapped magazine");
+        assertEqual(0, cache.malloc(), "Round after swapping back");
+        for (int address : new int[] { 20, 30, 70, 10, 0 }) {
+            cache.free(address);
+        }
+        assertEqual(0, cache.getFullMagazineCount(), "Full magazines before flush");
+        cache.flush();
+        assertEqual(2, cache.getFullMagazineCount(), "Full magazines after flush");
+
+        // two full magazines come from the depot, the third one from the memory space
+        int[] addresses = new int[9];
+        for (int i = 0; i < addresses.length; i++) {
+            addresses[i] = cache.malloc();
+        }
+        assertEqual(0, cache.getFullMagazineCount(), "Full magazines taken from the depot");
+        assertEqual(12, memory.getAllocatedBlockCount(), "Blocks taken for a third magazine");
+        for (int address : addresses) {
+            cache.free(address);
+        }
+        assertEqual(1, cache.getFullMagazineCount(), "Full magazine exchanged for an empty one");
+        cache.flush();
+        assertEqual(3, cache.getFullMagazineCount(), "Full magazines after the second flush");
+        assertEqual(12, cache.reap(), "Reaped blocks");
+        assertEqual(0, memory.getAllocatedBlockCount(), "Blocks left after reap");
+
+        // blocks allocated by one thread and freed by another are reused by the second
+        MemorySpace shared = new MemorySpace(1000);
+        MagazineCache sharedCache = new MagazineCache(shared, 10, 4);
+        int[] remote = new int[4];
+        runThreads(1, t -> {
+            for (int i = 0; i < remote.length; i++) {
+                remote[i] = sharedCache.malloc();
+            }
+        });
+        for (int address : remote) {
+            sharedCache.free(address);
+        }
+        for (int i = remote.length - 1; i >= 0; i--) {
+            assertEqual(remote[i], sharedCache.malloc(), "Round freed by another thread");
+        }
+        assertEqual(4, shared.getAllocatedBlockCount(), "Blocks taken by both threads");
+    }
+
+    private static void testHoardAllocator() {
+        MemorySpace memory = new MemorySpace(1 << 20);
+        HoardAllocator hoard = new HoardAllocator(memory, 64, 4, 0.25, 0);
+        int addr1 = hoard.malloc(3);
+        int addr2 = hoard.malloc(4);
+        assertEqual(4, Math.abs(addr2 - addr1), "Blocks rounded up to their size class");
+        hoard.free(addr1);
+        // the superblock still holds addr2, so it stays in the heap
+        assertRejected(() -> hoard.free(addr1), "Double free");
+        assertRejected(() -> hoard.free(addr2 + 1), "Misaligned free");
+        hoard.free(addr2);
+        assertEqual(0, hoard.getSuperblockCount(), "Empty superblock goes back to the memory space");
+        int large = hoard.malloc(100);
+        hoard.free(large);
+        assertRejected(() -> hoard.free(large), "Double free of a large block");
+
+        // producers allocate, and consumers free the blocks in other threads
+        int pairs = 4;
+        int perProducer = 20000;
+        ArrayList<ArrayBlockingQueue<Integer>> queues = new ArrayList<ArrayBlockingQueue<Integer>>();
+        for (int i = 0; i < pairs; i++) {
+            queues.add(new ArrayBlockingQueue<Integer>(64));
+        }
+        runThreads(2 * pairs, t -> {
+            ArrayBlockingQueue<Integer> queue = queues.get(t % pairs);
+            try {
+                if (t < pairs) {
+                    Random random = new Random(t);
+                    for (int i = 0; i < perProducer; i++) {
+                        int address = hoard.malloc(1 + random.nextInt(16));
+                        if (address == -1) {
+                            throw new IllegalStateException("malloc failed");
+                        }
+                        queue.put(address);
+                    }
+                } else {
+                    for (int i = 0; i < perProducer; i++) {
+                        hoard.free(queue.take());
+                    }
+                }
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        // every heap is empty, so all its superblocks went back to the memory space
+        assertEqual(0, hoard.getSuperblockCount(), "Superblocks left");
+        assertEqual(0, memory.getAllocatedBlockCount(), "Blocks left in the memory space");
+    }
+
+    private static void testPagedMemorySpace() {
+        // 16 pages of 64 words; blocks of up to 16 words are small
+        PagedMemorySpace paged = new PagedMemorySpace(1024, 64);
+        assertEqual(0, paged.malloc(3), "Block of 4 words");
+        assertEqual(4, paged.malloc(4), "Next block of the same page");
+        assertEqual(64, paged.malloc(5), "Block of 8 words, in its own page");
+        for (int i = 2; i < 16; i++) {
+            assertEqual(4 * i, paged.malloc(4), "Block of a filling page");
+        }
+        assertEqual(128, paged.malloc(4), "Block of a second page of the same class");
+        assertEqual(3, paged.getSmallPageCount(), "Small pages");
+
+        // the emptied page is retired, cached, and reused by another class
+        paged.free(128);
+        assertEqual(2, paged.getSmallPageCount(), "Small pages after retire");
+        assertEqual(128, paged.malloc(16), "Cached page reused");
+
+        // a large run of whole pages
+        int run = paged.malloc(100);
+        assertEqual(192, run, "Run of 2 pages");
+        assertRejected(() -> paged.free(run + 1), "Misaligned run");
+        paged.free(run);
+        assertRejected(() -> paged.free(run), "Double free of a run");
+        assertRejected(() -> paged.free(-1), "Address before the space");
+        assertRejected(() -> paged.free(1024), "Address after the space");
+        assertRejected(() -> paged.free(2), "Misaligned block");
+        paged.free(8);
+        assertRejected(() -> paged.free(8), "Double free of a small block");
+        assertEqual(8, paged.malloc(4), "Block freed once");
+        paged.free(12);
+        assertEqual(12, paged.malloc(4), "Free list after a rejected double free");
+
+        // frees by another thread are collected when the owner runs out of blocks
+        int run2 = paged.malloc(100);
+        boolean[] rejected = { false };
+        runThreads(1, t -> {
+            paged.free(4);
+            assertRejected(() -> paged.free(4), "Double free by another thread");
+            assertRejected(() -> paged.free(run2 + 64), "Free of a page inside a run, by another thread");
+            paged.free(run2);
+            try {
+                paged.malloc(4);
+            } catch (IllegalStateException e) {
+                rejected[0] = true;
+            }
+        });
+        if (!rejected[0]) {
+            throw new AssertionError("Paged space: a non-owner malloc was allowed");
+        }
+        assertEqual(4, paged.malloc(4), "Block freed by another thread");
+        // that malloc drained the queued free of the run as well
+        assertRejected(() -> paged.free(run2), "Run freed by another thread");
+        assertEqual(3, paged.getSmallPageCount(), "Small pages after thread frees");
+    }
+
+    private static void testExtentDecay() {
+        long[] now = { 0 };
+        ExtentAllocator extents = new ExtentAllocator(1000, 100, () -> now[0]);
+        int[] addresses = new int[10];
+        for (int i = 0; i < addresses.length; i++) {
+            addresses[i] = extents.malloc(10);
+        }
+        for (int address : addresses) {
+            extents.free(address);
+        }
+        assertEqual(100, (int) extents.getDirtyWords(), "Dirty words after a burst of frees");
+
+        // a burst of mallocs of the same length reuses the dirty extents
+        for (int i = addresses.length - 1; i >= 0; i--) {
+            assertEqual(addresses[i], extents.malloc(10), "Reused dirty extent");
+        }
+        assertEqual(0, (int) extents.getDirtyWords(), "Dirty words after reuse");
+        assertEqual(0, (int) extents.getPurgedWords(), "Purged words after reuse");
+        assertEqual(100, (int) extents.getActiveWords(), "Active words");
+
+        for (int address : addresses) {
+            extents.free(address);
+        }
+        now[0] = 50000000L;
+        extents.decay();
+        // halfway through the decay time, smoothstep keeps half of the dirty words
+        assertEqual(50, (int) extents.getDirtyWords(), "Dirty words halfway");
+        assertEqual(50, (int) extents.getPurgedWords(), "Purged words halfway");
+        now[0] = 100000000L;
+        extents.decay();
+        assertEqual(0, (int) extents.getDirtyWords(), "Dirty words after the decay time");
+        assertEqual(100, (int) extents.getPurgedWords(), "Purged words after the decay time");
+        assertEqual(1000, (int) extents.getCleanWords(), "Clean words after the decay time");
+        assertEqual(0, extents.malloc(1000), "Purged extents are merged");
+    }
+
+    private static void testGenerationalMemorySpace() {
+        // two regions of 100 words, at 0 and 100; blocks of up to 25 words are nursery blocks
+        GenerationalMemorySpace generational = new GenerationalMemorySpace(1000, 100, 2, 2);
+        assertRejected(() -> generational.malloc(-50), "Negative length");
+        assertRejected(() -> generational.malloc(0), "Empty block");
+
+        int addr1 = generational.malloc(10);
+        int addr2 = generational.malloc(10);
+        assertEqual(0, addr1, "Bump allocation");
+        assertEqual(10, addr2, "Next bump allocation");
+        generational.free(addr1);
+        generational.free(addr2);
+        assertRejected(() -> generational.free(addr1), "Double free of a region's first block");
+        assertRejected(() -> generational.free(5), "Free inside a region");
+        assertEqual(0, generational.malloc(10), "Region reset when its last block dies");
+
+        // the block at 0 survives, while the region fills and the allocator moves on
+        for (int i = 0; i < 3; i++) {
+            generational.free(generational.malloc(25));
+        }
+        assertEqual(100, generational.malloc(25), "Block of the next region");
+        for (int i = 0; i < 3; i++) {
+            generational.malloc(25);
+        }
+        // both regions have live blocks: the first advance ages them, the second promotes
+        assertEqual(200, generational.malloc(25), "Tenured block while no region can be reset");
+        int addr3 = generational.malloc(25);
+        assertEqual(1, (int) generational.getPromotedCount(), "Promoted blocks");
+        MemorySpace tenured = generational.getTenuredSpace();
+        assertEqual(225, addr3, "Block of the new region");
+        int blocks = tenured.getAllocatedBlockCount();
+        generational.free(0);
+        assertEqual(blocks - 1, tenured.getAllocatedBlockCount(), "Promoted block is a tenured block");
+        assertEqual(11, (int) generational.getNurseryMallocCount(), "Nursery mallocs");
+    }
+
+    /** Runs body(0) to body(threads - 1) in as many threads, and waits for them. */
+    private static void runThreads(int threads, IntConsumer body) {
+        Thread[] workers = new Thread[threads];
+        Throwable[] failure = new Throwable[1];
+        for (int t = 0; t < threads; t++) {
+            int id = t;
+            workers[t] = new Thread(() -> body.accept(id));
+            workers[t].setUncaughtExceptionHandler((thread, e) -> failure[0] = e);
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                throw new AssertionError("Interrupted");
+            }
+        }
+        if (failure[0] != null) {
+            throw new AssertionError("A thread failed: " + failure[0], failure[0]);
+        }
+    }
+
+    private static void assertRejected(Runnable call, String message) {
+        try {
+            call.run();
+        } catch (IllegalArgumentException e) {
+            return;
+        }
+        throw new AssertionError(message + ": Expected IllegalArgumentException");
+    }
+
+    private static void assertNear(long expected, long actual, String message) {
+        if (Math.abs(expected - actual) > expected / 32) {
+            throw new AssertionError(message + ": Expected about " + expected + " but got " + actual);
+        }
+    }
+
     private static void assertEqual(int expected, int actual, String message) {
         if (expected != actual) {
             throw new AssertionError(message + ": Expected " + expected + " but got " + actual);
         }
     }
 
+    private static void assertExact(String expected, String actual, String message) {
+        if (!expected.equals(actual)) {
+            throw new AssertionError(message + ":\nExpected: " + expected + "\nActual: " + actual);
+        }
+    }
+
     private static void assertString(String expected, String actual, String message) {
         // Normalize and split the strings into sets of blocks
         String[] expectedBlocks = normalizeString(expected).split("\\)\\(");
@@ -0,0 +1,171 @@
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Represents a memory space that is owned by a single thread.
+ * <p>
+ * Only the owner thread may call malloc. Any thread may call free: a free
+ * from the owner goes straight to the memory space, while a free from any
+ * other thread is pushed onto a lock-free queue of remote frees. The owner
+ * drains that queue in one batch at the beginning of its next malloc (or
+ * when it calls drainRemoteFrees). This way the memory space itself is only
+ * ever touched by its owner, and no lock is needed.
+ */
+public class ThreadArena implements Allocator {
+
+	/** An entry of the remote-free queue. */
+	private static class RemoteFree {
+
+		final int address;     // the address that was freed
+		final RemoteFree next; // the entry that was pushed before this one
+
+		RemoteFree(int address, RemoteFree next) {
+			this.address = address;
+			this.next = next;
+		}
+	}
+
+	private final MemorySpace space; // the memory space of this arena
+	private final Thread owner;      // the only thread that touches space
+
+	// Frees pushed by other threads, newest first (a Treiber stack)
+	private final AtomicReference<RemoteFree> remoteFrees;
+
+	/**
+	 * Constructs a new arena of a given maximal size, owned by the current thread.
+	 *
+	 * @param maxSize
+	 *        the size of the memory space to be managed
+	 */
+	public ThreadArena(int maxSize) {
+		this(new MemorySpace(maxSize), Thread.currentThread());
+	}
+
+	/**
+	 * Constructs a new arena around the given memory space, owned by the given
+	 * thread. From now on, the memory space should be used only through this arena.
+	 *
+	 * @param space
+	 *        the memory space to be managed
+	 * @param owner
+	 *        the thread that owns the arena
+	 */
+	public ThreadArena(MemorySpace space, Thread owner) {
+		if (space == null || owner == null) {
+			throw new IllegalArgumentException("space and owner must not be null");
+		}
+		this.space = space;
+		this.owner = owner;
+		this.remoteFrees = new AtomicReference<RemoteFree>(null);
+	}
+
+	/**
+	 * Gets the thread that owns this arena.
+	 *
+	 * @return the owner thread
+	 */
+	public Thread getOwner() {
+		return owner;
+	}
+
+	/**
+	 * Allocates a memory block of a requested length (in words), after draining
+	 * the frees that other threads made since the last call.
+	 *
+	 * @param length
+	 *        the length (in words) of the memory block that has to be allocated
+	 * @return the base address of the allocated block, or -1 if unable to allocate
+	 * @throws IllegalStateException
+	 *         if the calling thread is not the owner of this arena
+	 */
+	public int malloc(int length) {
+		checkOwner();
+		drain();
+		return space.malloc(length);
+	}
+
+	/**
+	 * Frees the memory block whose base address equals the given address.
+	 * When called by a thread other than the owner, the free is only queued,
+	 * and takes effect when the owner drains the queue.
+	 *
+	 * @param address
+	 *        the starting address of the block to free
+	 */
+	public void free(int address) {
+		if (Thread.currentThread() == owner) {
+			space.free(address);
+			return;
+		}
+		RemoteFree head;
+		RemoteFree entry;
+		do {
+			head = remoteFrees.get();
+			entry = new RemoteFree(address, head);
+		} while (!remoteFrees.compareAndSet(head, entry));
+	}
+
+	/**
+	 * Drains the queued remote frees, and defragments the memory space.
+	 *
+	 * @throws IllegalStateException
+	 *         if the calling thread is not the owner of this arena
+	 */
+	public void defrag() {
+		checkOwner();
+		drain();
+		space.defrag();
+	}
+
+	/**
+	 * Applies all the queued remote frees to the memory space.
+	 *
+	 * @return the number of frees that were applied
+	 * @throws IllegalStateException
+	 *         if the calling thread is not the owner of this arena
+	 */
+	public int drainRemoteFrees() {
+		checkOwner();
+		return drain();
+	}
+
+	/**
+	 * Gets the memory space of this arena. The memory space may be inspected
+	 * only by the owner thread.
+	 *
+	 * @return the memory space of this arena
+	 */
+	public MemorySpace getMemorySpace() {
+		checkOwner();
+		return space;
+	}
+
+	/** Takes the whole remote-free queue at once, and frees it in FIFO order. */
+	private int drain() {
+		if (remoteFrees.get() == null) {
+			return 0;
+		}
+		RemoteFree reversed = null;
+		for (RemoteFree e = remoteFrees.getAndSet(null); e != null; e = e.next) {
+			reversed = new RemoteFree(e.address, reversed);
+		}
+		int count = 0;
+		for (RemoteFree e = reversed; e != null; e = e.next) {
+			space.free(e.address);
+			count++;
+		}
+		return count;
+	}
+
+	private void checkOwner() {
+		if (Thread.currentThread() != owner) {
+			throw new IllegalStateException("Only the owner thread may use this arena");
+		}
+	}
+
+	/**
+	 * A textual representation of this arena, for debugging.
+	 */
+	public String toString() {
+		return space.toString();
+	}
+}
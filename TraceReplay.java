@@ -0,0 +1,298 @@
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.HashMap;
+
+/**
+ * Replays an allocation trace (see AllocationTrace) through an Allocator, and
+ * reports how the allocator did: throughput, latency percentiles, peak
+ * footprint, and fragmentation over time.
+ * <p>
+ * The trace is streamed one record at a time. The only state that grows is
+ * the map from the addresses of the trace to the addresses of the replay, which
+ * holds the live blocks, and is bounded by the size of the memory space. So
+ * traces of any length are replayed in constant memory.
+ * <p>
+ * The replay allocator returns its own addresses, so a free in the trace is
+ * applied to the block that the replay allocated for the matching malloc. A
+ * malloc that failed in the trace but succeeds in the replay is freed right
+ * away, so that both run with the same live blocks; a malloc that succeeded
+ * in the trace but fails in the replay is counted, and its free is skipped.
+ * <p>
+ * Usage: java TraceReplay trace-file [allocator], where allocator is one of
+ * memory-space (the default), fast-bins, targeted, full, generational,
+ * extent and paged.
+ */
+public class TraceReplay {
+
+	/** The most fragmentation samples a report holds. */
+	private static final int MAX_SAMPLES = 256;
+
+	/**
+	 * Represents the results of a replay.
+	 */
+	public static class Report {
+
+		private long mallocs;             // the malloc records replayed
+		private long frees;               // the free records replayed
+		private long defrags;             // the defrag records replayed
+		private long failedMallocs;       // mallocs that failed in the replay
+		private long extraMallocs;        // mallocs that failed in the trace only
+		private long allocatorNanos;      // the time spent in the allocator
+		private long liveWords;           // words in live blocks
+		private long peakLiveWords;       // the peak of liveWords
+		private long peakAddress;         // the highest end address of a live block
+		private LatencyHistogram.Snapshot mallocLatency;
+		private LatencyHistogram.Snapshot freeLatency;
+
+		// Fragmentation samples, taken every sampleInterval operations
+		private final long[] sampleOps = new long[MAX_SAMPLES];
+		private final double[] sampleValues = new double[MAX_SAMPLES];
+		private int sampleCount;
+		private long sampleInterval = 1024;
+
+		/** @return the number of operations replayed */
+		public long getOperationCount() {
+			return mallocs + frees + defrags;
+		}
+
+		/** @return the number of mallocs that failed in the replay but not in the trace */
+		public long getFailedMallocCount() {
+			return failedMallocs;
+		}
+
+		/** @return the operations per second, counting only the time spent in the allocator */
+		public double getThroughput() {
+			return allocatorNanos == 0 ? 0 : getOperationCount() * 1e9 / allocatorNanos;
+		}
+
+		/** @return the peak number of words in live blocks */
+		public long getPeakLiveWords() {
+			return peakLiveWords;
+		}
+
+		/** @return the peak footprint: the highest end address of a live block */
+		public long getPeakFootprint() {
+			return peakAddress;
+		}
+
+		/** @return the latencies of malloc */
+		public LatencyHistogram.Snapshot getMallocLatency() {
+			return mallocLatency;
+		}
+
+		/** @return the latencies of free */
+		public LatencyHistogram.Snapshot getFreeLatency() {
+			return freeLatency;
+		}
+
+		/**
+		 * Gets the number of fragmentation samples. Samples are taken only
+		 * when the replay allocator is a MemorySpace.
+		 *
+		 * @return the number of samples
+		 */
+		public int getSampleCount() {
+			return sampleCount;
+		}
+
+		/**
+		 * @param i the index of a sample
+		 * @return the number of operations replayed when the sample was taken
+		 */
+		public long getSampleOperation(int i) {
+			return sampleOps[i];
+		}
+
+		/**
+		 * @param i the index of a sample
+		 * @return the fragmentation of the memory space when the sample was taken
+		 */
+		public double getSampleFragmentation(int i) {
+			return sampleValues[i];
+		}
+
+		/** Adds a sample; when the samples are full, keeps every other one, and samples half as often. */
+		private void sample(long op, double fragmentation) {
+			if (sampleCount == MAX_SAMPLES) {
+				for (int i = 0; i < MAX_SAMPLES / 2; i++) {
+					sampleOps[i] = sampleOps[2 * i + 1];
+					sampleValues[i] = sampleValues[2 * i + 1];
+				}
+				sampleCount = MAX_SAMPLES / 2;
+				sampleInterval *= 2;
+			}
+			sampleOps[sampleCount] = op;
+			sampleValues[sampleCount] = fragmentation;
+			sampleCount++;
+		}
+
+		/**
+		 * A textual representation of this report.
+		 */
+		public String toString() {
+			StringBuilder str = new StringBuilder();
+			str.append("operations       ").append(getOperationCount()).append(" (").append(mallocs)
+					.append(" mallocs, ").append(frees).append(" frees, ").append(defrags).append(" defrags)\n");
+			str.append("failed mallocs   ").append(failedMallocs).append(" (").append(extraMallocs)
+					.append(" succeeded that failed in the trace)\n");
+			str.append("throughput       ").append(Math.round(getThroughput())).append(" ops/s\n");
+			str.append("malloc latency   ").append(mallocLatency).append('\n');
+			str.append("free latency     ").append(freeLatency).append('\n');
+			str.append("peak live words  ").append(peakLiveWords).append('\n');
+			str.append("peak footprint   ").append(peakAddress).append('\n');
+			if (sampleCount > 0) {
+				str.append("fragmentation    ");
+				int step = Math.max(1, sampleCount / 16);
+				for (int i = 0; i < sampleCount; i += step) {
+					str.append(String.format("%d:%.3f ", sampleOps[i], sampleValues[i]));
+				}
+				str.append('\n');
+			}
+			return str.toString();
+		}
+	}
+
+	private final Allocator allocator;   // the allocator that the trace is replayed through
+
+	/**
+	 * Constructs a new replay.
+	 *
+	 * @param allocator
+	 *        the allocator that traces are replayed through
+	 * @throws IllegalArgumentException
+	 *         if allocator is null
+	 */
+	public TraceReplay(Allocator allocator) {
+		if (allocator == null) {
+			throw new IllegalArgumentException("allocator must not be null");
+		}
+		this.allocator = allocator;
+	}
+
+	/**
+	 * Replays a trace, until its end.
+	 *
+	 * @param trace
+	 *        the trace to replay
+	 * @return the report of the replay
+	 * @throws IOException
+	 *         if the trace cannot be read
+	 */
+	public Report replay(AllocationTrace.Reader trace) throws IOException {
+		Report report = new Report();
+		LatencyHistogram mallocLatency = new LatencyHistogram();
+		LatencyHistogram freeLatency = new LatencyHistogram();
+		// trace address to replay address (high 32 bits) and length (low 32 bits)
+		HashMap<Integer, Long> live = new HashMap<Integer, Long>();
+		MemorySpace space = allocator instanceof MemorySpace ? (MemorySpace) allocator : null;
+		long op = 0;
+		while (trace.next()) {
+			if (trace.getOp() == AllocationTrace.MALLOC) {
+				int length = trace.getLength();
+				long start = System.nanoTime();
+				int address = allocator.malloc(length);
+				long nanos = System.nanoTime() - start;
+				mallocLatency.record(nanos);
+				report.allocatorNanos += nanos;
+				report.mallocs++;
+				if (address == -1) {
+					if (trace.getAddress() != -1) {
+						report.failedMallocs++;
+					}
+				} else if (trace.getAddress() == -1) {
+					report.extraMallocs++;
+					allocator.free(address);
+				} else {
+					live.put(trace.getAddress(), (long) address << 32 | length);
+					report.liveWords += length;
+					report.peakLiveWords = Math.max(report.peakLiveWords, report.liveWords);
+					report.peakAddress = Math.max(report.peakAddress, (long) address + length);
+				}
+			} else if (trace.getOp() == AllocationTrace.FREE) {
+				Long block = live.remove(trace.getAddress());
+				report.frees++;
+				if (block != null) {
+					long start = System.nanoTime();
+					allocator.free((int) (block >>> 32));
+					long nanos = System.nanoTime() - start;
+					freeLatency.record(nanos);
+					report.allocatorNanos += nanos;
+					report.liveWords -= (int) (long) block;
+				}
+			} else {
+				long start = System.nanoTime();
+				allocator.defrag();
+				report.allocatorNanos += System.nanoTime() - start;
+				report.defrags++;
+			}
+			op++;
+			if (space != null && op % report.sampleInterval == 0) {
+				report.sample(op, space.getFragmentation());
+			}
+		}
+		report.mallocLatency = mallocLatency.snapshot();
+		report.freeLatency = freeLatency.snapshot();
+		return report;
+	}
+
+	/**
+	 * Makes an allocator of the given kind, for a memory space of the given size.
+	 *
+	 * @param name
+	 *        the kind of allocator, as listed in the class comment
+	 * @param maxSize
+	 *        the size of the memory space
+	 * @return the allocator
+	 * @throws IllegalArgumentException
+	 *         if the name is unknown
+	 */
+	public static Allocator newAllocator(String name, int maxSize) {
+		switch (name) {
+		case "memory-space":
+			return new MemorySpace(maxSize);
+		case "fast-bins": {
+			MemorySpace space = new MemorySpace(maxSize);
+			space.setFastBins(16, 1024);
+			return space;
+		}
+		case "targeted":
+		case "full": {
+			MemorySpace space = new MemorySpace(maxSize);
+			space.setDefragPolicy(name.equals("full") ? DefragPolicy.FULL : DefragPolicy.TARGETED);
+			return space;
+		}
+		case "generational":
+			return new GenerationalMemorySpace(maxSize, Math.max(64, maxSize / 64), 4, 4);
+		case "extent":
+			return new ExtentAllocator(maxSize, 1000);
+		case "paged":
+			return new PagedMemorySpace(maxSize, Math.min(Integer.highestOneBit(maxSize),
+					Math.max(4, Integer.highestOneBit(maxSize / 256))));
+		default:
+			throw new IllegalArgumentException("Unknown allocator " + name);
+		}
+	}
+
+	/**
+	 * Replays a trace file, and prints the report.
+	 *
+	 * @param args
+	 *        the trace file, and optionally the kind of allocator
+	 * @throws IOException
+	 *         if the trace cannot be read
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1) {
+			System.out.println("Usage: java TraceReplay trace-file [allocator]");
+			return;
+		}
+		String name = args.length > 1 ? args[1] : "memory-space";
+		try (AllocationTrace.Reader trace = new AllocationTrace.Reader(
+				new BufferedInputStream(new FileInputStream(args[0]), 1 << 16))) {
+			Allocator allocator = newAllocator(name, trace.getMaxSize());
+			System.out.println("replaying " + args[0] + " through " + name + "\n");
+			System.out.print(new TraceReplay(allocator).replay(trace));
+		}
+	}
+}
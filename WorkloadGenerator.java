@@ -0,0 +1,378 @@
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/**
+ * Generates synthetic sequences of mallocs and frees, for stress testing
+ * allocators: the lengths follow a SizeDistribution, and the order in which
+ * the blocks are freed follows a LifetimeDistribution. The sequence depends
+ * only on the seed and the parameters, so a workload can be reproduced exactly.
+ * <p>
+ * The sequence is generated one operation at a time (see next), and the
+ * memory it takes is proportional to the number of live blocks, not to the
+ * number of operations, so sequences of 10^8 operations and more can be run
+ * directly against an Allocator (see run) or written as a trace (see writeTrace).
+ * <p>
+ * Blocks are identified by slots: numbers from 0 up to the peak number of live
+ * blocks, which are reused after the block is freed.
+ */
+public class WorkloadGenerator {
+
+	private final SplittableRandom random;   // the source of all randomness
+	private final SizeDistribution sizes;
+	private final LifetimeDistribution lifetimes;
+	private final int minLength;             // the shortest block length
+	private final int maxLength;             // the longest block length
+	private final int liveBlocks;            // the target number of live blocks
+	private final double[] zipfCdf;          // the cumulative Zipf weights, or null
+
+	private int op;                          // the op of the current operation
+	private int length;                      // the length of the current malloc
+	private int slot;                        // the slot of the current operation
+	private long mallocs;                    // the number of mallocs so far
+
+	// Slots: the unused slots, as a stack, and the number of slots ever used
+	private int[] freeSlots = new int[16];
+	private int freeSlotCount;
+	private int slotCount;
+
+	// The live blocks. For EXPONENTIAL, a min-heap of slots by death time (in
+	// mallocs); for LIFO and FIFO, a ring of slots, oldest first; for PHASED,
+	// an array of slots.
+	private int[] live = new int[16];
+	private long[] deaths;
+	private int liveHead;
+	private int liveCount;
+	private boolean freeing;                 // PHASED: true while the phase frees
+
+	/**
+	 * Constructs a new workload generator.
+	 *
+	 * @param seed
+	 *        the seed of the random numbers
+	 * @param sizes
+	 *        the distribution of block lengths
+	 * @param lifetimes
+	 *        the order in which blocks are freed
+	 * @param minLength
+	 *        the shortest block length (ignored by POWER_MOD)
+	 * @param maxLength
+	 *        the longest block length (ignored by POWER_MOD)
+	 * @param liveBlocks
+	 *        the number of live blocks that the workload hovers around
+	 * @throws IllegalArgumentException
+	 *         if a distribution is null, or the lengths or liveBlocks are out of range
+	 */
+	public WorkloadGenerator(long seed, SizeDistribution sizes, LifetimeDistribution lifetimes,
+			int minLength, int maxLength, int liveBlocks) {
+		if (sizes == null || lifetimes == null) {
+			throw new IllegalArgumentException("sizes and lifetimes must not be null");
+		}
+		if (minLength <= 0 || maxLength < minLength || liveBlocks <= 0) {
+			throw new IllegalArgumentException("lengths and liveBlocks must be positive, and minLength <= maxLength");
+		}
+		this.random = new SplittableRandom(seed);
+		this.sizes = sizes;
+		this.lifetimes = lifetimes;
+		this.minLength = minLength;
+		this.maxLength = maxLength;
+		this.liveBlocks = liveBlocks;
+		this.zipfCdf = sizes == SizeDistribution.ZIPF ? zipfCdf(maxLength - minLength + 1) : null;
+		this.deaths = lifetimes == LifetimeDistribution.EXPONENTIAL ? new long[16] : null;
+	}
+
+	/**
+	 * Generates the next operation.
+	 *
+	 * @return the op of the operation: AllocationTrace.MALLOC or AllocationTrace.FREE
+	 */
+	public int next() {
+		if (shouldFree()) {
+			op = AllocationTrace.FREE;
+			slot = takeLive();
+			length = 0;
+			releaseSlot(slot);
+		} else {
+			op = AllocationTrace.MALLOC;
+			length = nextLength();
+			slot = acquireSlot();
+			addLive(slot);
+			mallocs++;
+		}
+		return op;
+	}
+
+	/**
+	 * @return the op of the current operation: AllocationTrace.MALLOC or AllocationTrace.FREE
+	 */
+	public int getOp() {
+		return op;
+	}
+
+	/**
+	 * @return the length of the current malloc
+	 */
+	public int getLength() {
+		return length;
+	}
+
+	/**
+	 * @return the slot of the block that the current operation allocates or frees
+	 */
+	public int getSlot() {
+		return slot;
+	}
+
+	/**
+	 * @return the number of blocks presently live
+	 */
+	public int getLiveCount() {
+		return liveCount;
+	}
+
+	/**
+	 * Runs the given number of operations against an allocator. A free of a
+	 * block whose malloc failed is skipped.
+	 *
+	 * @param allocator
+	 *        the allocator
+	 * @param operations
+	 *        the number of operations to run
+	 * @return the number of mallocs that failed
+	 */
+	public long run(Allocator allocator, long operations) {
+		int[] addresses = new int[16];
+		long failed = 0;
+		for (long i = 0; i < operations; i++) {
+			if (next() == AllocationTrace.MALLOC) {
+				if (slot >= addresses.length) {
+					addresses = Arrays.copyOf(addresses, addresses.length * 2);
+				}
+				addresses[slot] = allocator.malloc(length);
+				if (addresses[slot] == -1) {
+					failed++;
+				}
+			} else if (addresses[slot] != -1) {
+				allocator.free(addresses[slot]);
+			}
+		}
+		return failed;
+	}
+
+	/**
+	 * Writes the given number of operations as a trace, that TraceReplay can
+	 * replay. The addresses in the trace are the slots, which TraceReplay uses
+	 * only to match each free with its malloc; the times are all 0.
+	 *
+	 * @param out
+	 *        the stream to write the trace to; should be buffered
+	 * @param maxSize
+	 *        the size of the memory space to replay the trace in
+	 * @param operations
+	 *        the number of operations to write
+	 * @throws IOException
+	 *         if the stream fails
+	 */
+	public void writeTrace(OutputStream out, int maxSize, long operations) throws IOException {
+		AllocationTrace.writeHeader(out, maxSize);
+		for (long i = 0; i < operations; i++) {
+			out.write(next());
+			out.write(0);
+			if (op == AllocationTrace.MALLOC) {
+				AllocationTrace.writeVarint(out, length);
+				AllocationTrace.writeVarint(out, slot + 1L);
+			} else {
+				AllocationTrace.writeVarint(out, slot);
+			}
+		}
+		out.flush();
+	}
+
+	/** Decides if the next operation frees a block. */
+	private boolean shouldFree() {
+		if (liveCount == 0) {
+			freeing = false;
+			return false;
+		}
+		switch (lifetimes) {
+		case EXPONENTIAL:
+			return deaths[0] <= mallocs;
+		case PHASED:
+			if (liveCount >= liveBlocks) {
+				freeing = true;
+			}
+			return freeing;
+		default:
+			// a random walk, pulled towards liveBlocks
+			return random.nextInt(2 * liveBlocks) < liveCount;
+		}
+	}
+
+	private int nextLength() {
+		switch (sizes) {
+		case UNIFORM:
+			return random.nextInt(minLength, maxLength + 1);
+		case ZIPF: {
+			int k = Arrays.binarySearch(zipfCdf, random.nextDouble());
+			return minLength + (k < 0 ? -k - 1 : k);
+		}
+		case BIMODAL: {
+			int span = maxLength - minLength;
+			if (random.nextInt(10) < 9) {
+				return random.nextInt(minLength, minLength + span / 8 + 1);
+			}
+			return random.nextInt(maxLength - span / 4, maxLength + 1);
+		}
+		default: {
+			// (i + 2)^5 mod 123, computed exactly; a length of 0 becomes 1
+			long base = (mallocs + 2) % 123;
+			long power = 1;
+			for (int i = 0; i < 5; i++) {
+				power = power * base % 123;
+			}
+			return Math.max(1, (int) power);
+		}
+		}
+	}
+
+	/** Adds a newly allocated slot to the live blocks. */
+	private void addLive(int s) {
+		if (liveCount == live.length) {
+			grow();
+		}
+		if (lifetimes == LifetimeDistribution.EXPONENTIAL) {
+			// an exponential lifetime with a mean of liveBlocks mallocs
+			long death = mallocs + 1 + (long) (-Math.log(1 - random.nextDouble()) * liveBlocks);
+			int i = liveCount++;
+			while (i > 0 && deaths[(i - 1) / 2] > death) {
+				deaths[i] = deaths[(i - 1) / 2];
+				live[i] = live[(i - 1) / 2];
+				i = (i - 1) / 2;
+			}
+			deaths[i] = death;
+			live[i] = s;
+		} else if (lifetimes == LifetimeDistribution.PHASED) {
+			live[liveCount++] = s;
+		} else {
+			live[(liveHead + liveCount++) % live.length] = s;
+		}
+	}
+
+	/** Removes the slot to free from the live blocks. */
+	private int takeLive() {
+		switch (lifetimes) {
+		case EXPONENTIAL: {
+			int s = live[0];
+			liveCount--;
+			long death = deaths[liveCount];
+			int last = live[liveCount];
+			int i = 0;
+			while (2 * i + 1 < liveCount) {
+				int child = 2 * i + 1;
+				if (child + 1 < liveCount && deaths[child + 1] < deaths[child]) {
+					child++;
+				}
+				if (deaths[child] >= death) {
+					break;
+				}
+				deaths[i] = deaths[child];
+				live[i] = live[child];
+				i = child;
+			}
+			deaths[i] = death;
+			live[i] = last;
+			return s;
+		}
+		case PHASED: {
+			int i = random.nextInt(liveCount);
+			int s = live[i];
+			live[i] = live[--liveCount];
+			return s;
+		}
+		case LIFO:
+			return live[(liveHead + --liveCount) % live.length];
+		default: {
+			int s = live[liveHead];
+			liveHead = (liveHead + 1) % live.length;
+			liveCount--;
+			return s;
+		}
+		}
+	}
+
+	/** Doubles the capacity of the live blocks, unwrapping the ring. */
+	private void grow() {
+		int[] bigger = new int[live.length * 2];
+		for (int i = 0; i < liveCount; i++) {
+			bigger[i] = live[(liveHead + i) % live.length];
+		}
+		live = bigger;
+		liveHead = 0;
+		if (deaths != null) {
+			deaths = Arrays.copyOf(deaths, live.length);
+		}
+	}
+
+	private int acquireSlot() {
+		if (freeSlotCount > 0) {
+			return freeSlots[--freeSlotCount];
+		}
+		return slotCount++;
+	}
+
+	private void releaseSlot(int s) {
+		if (freeSlotCount == freeSlots.length) {
+			freeSlots = Arrays.copyOf(freeSlots, freeSlots.length * 2);
+		}
+		freeSlots[freeSlotCount++] = s;
+	}
+
+	/** Returns the cumulative weights of 1 / k, for k = 1 to n, normalized to end at 1. */
+	private static double[] zipfCdf(int n) {
+		double[] cdf = new double[n];
+		double sum = 0;
+		for (int k = 1; k <= n; k++) {
+			sum += 1.0 / k;
+			cdf[k - 1] = sum;
+		}
+		for (int k = 0; k < n; k++) {
+			cdf[k] /= sum;
+		}
+		return cdf;
+	}
+
+	/**
+	 * Writes a generated trace to a file.
+	 * Usage: java WorkloadGenerator trace-file operations maxSize sizes lifetimes
+	 * [minLength maxLength liveBlocks seed], where sizes is a SizeDistribution
+	 * and lifetimes is a LifetimeDistribution, for example:
+	 * java WorkloadGenerator zipf.trace 100000000 1000000 ZIPF EXPONENTIAL 1 256 2000 42
+	 *
+	 * @param args
+	 *        the arguments, as above
+	 * @throws IOException
+	 *         if the file cannot be written
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 5) {
+			System.out.println("Usage: java WorkloadGenerator trace-file operations maxSize sizes lifetimes"
+					+ " [minLength maxLength liveBlocks seed]");
+			return;
+		}
+		long operations = Long.parseLong(args[1]);
+		int maxSize = Integer.parseInt(args[2]);
+		SizeDistribution sizes = SizeDistribution.valueOf(args[3]);
+		LifetimeDistribution lifetimes = LifetimeDistribution.valueOf(args[4]);
+		int minLength = args.length > 5 ? Integer.parseInt(args[5]) : 1;
+		int maxLength = args.length > 6 ? Integer.parseInt(args[6]) : 128;
+		int liveBlocks = args.length > 7 ? Integer.parseInt(args[7]) : 1000;
+		long seed = args.length > 8 ? Long.parseLong(args[8]) : 42;
+		WorkloadGenerator generator = new WorkloadGenerator(seed, sizes, lifetimes, minLength, maxLength, liveBlocks);
+		try (OutputStream out = new BufferedOutputStream(new FileOutputStream(args[0]), 1 << 16)) {
+			generator.writeTrace(out, maxSize, operations);
+		}
+	}
+}